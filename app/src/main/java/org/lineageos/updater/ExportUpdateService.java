@@ -17,23 +17,40 @@ package org.lineageos.updater;
 
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ServiceInfo;
 import android.net.Uri;
 import android.os.IBinder;
-import android.os.SystemClock;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.core.app.NotificationCompat;
+import androidx.preference.PreferenceManager;
 
+import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.FileUtils;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
+import java.util.function.BiConsumer;
 
 public class ExportUpdateService extends Service {
 
@@ -42,9 +59,11 @@ public class ExportUpdateService extends Service {
     private static final int NOTIFICATION_ID = 16;
 
     public static final String ACTION_START_EXPORTING = "start_exporting";
+    public static final String ACTION_STOP_EXPORTING = "stop_exporting";
 
     public static final String EXTRA_SOURCE_FILE = "source_file";
     public static final String EXTRA_DEST_URI = "dest_uri";
+    public static final String EXTRA_CHECKSUM_URI = "checksum_uri";
 
     private static final String EXPORT_NOTIFICATION_CHANNEL =
             "export_notification_channel";
@@ -69,8 +88,13 @@ public class ExportUpdateService extends Service {
             mIsExporting = true;
             File source = (File) intent.getSerializableExtra(EXTRA_SOURCE_FILE);
             Uri destination = intent.getParcelableExtra(EXTRA_DEST_URI);
-            startExporting(source, destination);
+            Uri checksumDestination = intent.getParcelableExtra(EXTRA_CHECKSUM_URI);
+            startExporting(source, destination, checksumDestination);
             Toast.makeText(this, R.string.toast_export_started, Toast.LENGTH_SHORT).show();
+        } else if (ACTION_STOP_EXPORTING.equals(intent.getAction())) {
+            if (mIsExporting) {
+                mExportThread.interrupt();
+            }
         } else {
             Log.e(TAG, "No action specified");
         }
@@ -82,48 +106,237 @@ public class ExportUpdateService extends Service {
         return START_NOT_STICKY;
     }
 
+    /**
+     * Copies the update in chunks, hashing it in the same pass. If the copy
+     * fails, how far it got is saved so that exporting the same file to the
+     * same destination again only copies what's missing, as long as the
+     * destination can be reopened for writing at a given offset.
+     */
     private class ExportRunnable implements Runnable {
         private final ContentResolver mContentResolver;
         private final File mSource;
         private final Uri mDestination;
+        private final Uri mChecksumDestination;
+        private final String mFileName;
         private final FileUtils.ProgressCallBack mProgressCallBack;
-        private final Runnable mRunnableComplete;
+        private final BiConsumer<String, Boolean> mRunnableComplete;
         private final Runnable mRunnableFailed;
+        private final Runnable mRunnableCancelled;
 
         private ExportRunnable(ContentResolver cr, File source, Uri destination,
+                               Uri checksumDestination, String fileName,
                                FileUtils.ProgressCallBack progressCallBack,
-                               Runnable runnableComplete, Runnable runnableFailed) {
+                               BiConsumer<String, Boolean> runnableComplete,
+                               Runnable runnableFailed, Runnable runnableCancelled) {
             mContentResolver = cr;
             mSource = source;
             mDestination = destination;
+            mChecksumDestination = checksumDestination;
+            mFileName = fileName;
             mProgressCallBack = progressCallBack;
             mRunnableComplete = runnableComplete;
             mRunnableFailed = runnableFailed;
+            mRunnableCancelled = runnableCancelled;
         }
 
         @Override
         public void run() {
             try {
-                FileUtils.copyFile(mContentResolver, mSource, mDestination, mProgressCallBack);
+                String checksum = export(getResumeOffset());
+                clearResumeState();
+                releaseUri(mDestination);
+                boolean checksumWritten = writeChecksumFile(checksum);
                 mIsExporting = false;
-                if (!mExportThread.isInterrupted()) {
-                    Log.d(TAG, "Completed");
-                    mRunnableComplete.run();
-                } else {
-                    Log.d(TAG, "Aborted");
-                }
+                Log.d(TAG, "Completed");
+                mRunnableComplete.accept(checksum, checksumWritten);
             } catch (IOException e) {
                 mIsExporting = false;
-                Log.e(TAG, "Could not copy file", e);
-                mRunnableFailed.run();
+                if (Thread.currentThread().isInterrupted()) {
+                    Log.d(TAG, "Aborted");
+                    clearResumeState();
+                    deleteDocument(mDestination);
+                    releaseUri(mDestination);
+                    if (mChecksumDestination != null) {
+                        deleteDocument(mChecksumDestination);
+                        releaseUri(mChecksumDestination);
+                    }
+                    mRunnableCancelled.run();
+                } else {
+                    Log.e(TAG, "Could not copy file", e);
+                    mRunnableFailed.run();
+                }
             } finally {
                 stopSelf();
             }
         }
+
+        /**
+         * @param offset the number of bytes already exported
+         * @return the SHA-256 of the update
+         */
+        private String export(long offset) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+
+            ParcelFileDescriptor pfd = offset > 0 ? openForResume(offset) : null;
+            if (pfd == null) {
+                offset = 0;
+                pfd = mContentResolver.openFileDescriptor(mDestination, "w");
+                if (pfd == null) {
+                    throw new IOException("Could not open " + mDestination);
+                }
+            }
+            try (ParcelFileDescriptor destPfd = pfd;
+                 FileChannel sourceChannel = FileChannel.open(mSource.toPath(),
+                         StandardOpenOption.READ);
+                 FileChannel destChannel =
+                         new FileOutputStream(destPfd.getFileDescriptor()).getChannel()) {
+                long size = sourceChannel.size();
+                try {
+                    if (offset > 0) {
+                        Log.d(TAG, "Resuming from " + offset);
+                        FileUtils.updateDigest(sourceChannel, offset, digest);
+                    }
+                    FileUtils.copy(sourceChannel, destChannel, offset, size, digest::update,
+                            mProgressCallBack);
+                } catch (IOException e) {
+                    saveResumeState(destChannel);
+                    throw e;
+                }
+                try {
+                    // Drop what's left of a previous, longer file
+                    destChannel.truncate(size);
+                } catch (IOException e) {
+                    // Not a regular file, there can't be anything left
+                }
+            }
+            return FileUtils.toHexString(digest.digest());
+        }
+
+        /**
+         * @return the destination, open for writing without truncating it, or null
+         * if it can't be written from the given offset
+         */
+        private ParcelFileDescriptor openForResume(long offset) {
+            ParcelFileDescriptor pfd = null;
+            try {
+                pfd = mContentResolver.openFileDescriptor(mDestination, "rw");
+                if (pfd != null) {
+                    StructStat stat = Os.fstat(pfd.getFileDescriptor());
+                    if (OsConstants.S_ISREG(stat.st_mode) && stat.st_size >= offset) {
+                        return pfd;
+                    }
+                    pfd.close();
+                }
+            } catch (IOException | ErrnoException | RuntimeException e) {
+                Log.w(TAG, "Can't resume the export of " + mDestination, e);
+                if (pfd != null) {
+                    try {
+                        pfd.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            return null;
+        }
+
+        private long getResumeOffset() {
+            SharedPreferences preferences =
+                    PreferenceManager.getDefaultSharedPreferences(ExportUpdateService.this);
+            long offset = preferences.getLong(Constants.PREF_EXPORT_OFFSET, 0);
+            if (mSource.getAbsolutePath().equals(
+                    preferences.getString(Constants.PREF_EXPORT_SOURCE, null)) &&
+                    mSource.lastModified() ==
+                            preferences.getLong(Constants.PREF_EXPORT_SOURCE_MODIFIED, -1) &&
+                    mDestination.toString().equals(
+                            preferences.getString(Constants.PREF_EXPORT_DESTINATION, null)) &&
+                    offset <= mSource.length()) {
+                return offset;
+            }
+            return 0;
+        }
+
+        private void saveResumeState(FileChannel destChannel) {
+            long offset;
+            try {
+                destChannel.force(false);
+                offset = destChannel.position();
+            } catch (IOException e) {
+                // Closed or not seekable, can't be resumed
+                return;
+            }
+            Log.d(TAG, "Export of " + mSource + " stopped at " + offset);
+            PreferenceManager.getDefaultSharedPreferences(ExportUpdateService.this).edit()
+                    .putString(Constants.PREF_EXPORT_SOURCE, mSource.getAbsolutePath())
+                    .putLong(Constants.PREF_EXPORT_SOURCE_MODIFIED, mSource.lastModified())
+                    .putString(Constants.PREF_EXPORT_DESTINATION, mDestination.toString())
+                    .putLong(Constants.PREF_EXPORT_OFFSET, offset)
+                    .apply();
+        }
+
+        private void clearResumeState() {
+            PreferenceManager.getDefaultSharedPreferences(ExportUpdateService.this).edit()
+                    .remove(Constants.PREF_EXPORT_SOURCE)
+                    .remove(Constants.PREF_EXPORT_SOURCE_MODIFIED)
+                    .remove(Constants.PREF_EXPORT_DESTINATION)
+                    .remove(Constants.PREF_EXPORT_OFFSET)
+                    .apply();
+        }
+
+        private void releaseUri(Uri uri) {
+            try {
+                mContentResolver.releasePersistableUriPermission(uri,
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                                Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+            } catch (SecurityException e) {
+                // It wasn't persisted
+            }
+        }
+
+        private void deleteDocument(Uri uri) {
+            try {
+                DocumentsContract.deleteDocument(mContentResolver, uri);
+            } catch (Exception e) {
+                Log.w(TAG, "Could not delete " + uri, e);
+            }
+        }
+
+        /**
+         * Write the checksum to the document picked next to the export, in the
+         * format of sha256sum
+         *
+         * @return true if the checksum was written
+         */
+        private boolean writeChecksumFile(String checksum) {
+            if (mChecksumDestination == null) {
+                return false;
+            }
+            String content = checksum + "  " + mFileName + "\n";
+            try (OutputStream out = mContentResolver.openOutputStream(mChecksumDestination,
+                    "wt")) {
+                if (out == null) {
+                    throw new IOException("Could not open " + mChecksumDestination);
+                }
+                out.write(content.getBytes(StandardCharsets.UTF_8));
+                return true;
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Could not write the checksum of " + mFileName, e);
+                return false;
+            } finally {
+                releaseUri(mChecksumDestination);
+            }
+        }
     }
 
-    private void startExporting(File source, Uri destination) {
-        final String fileName = FileUtils.queryName(getContentResolver(), destination);
+    private void startExporting(File source, Uri destination, Uri checksumDestination) {
+        String queriedName = FileUtils.queryName(getContentResolver(), destination);
+        final String fileName = queriedName != null ? queriedName : source.getName();
+        final String checksumFileName = checksumDestination != null ?
+                FileUtils.queryName(getContentResolver(), checksumDestination) : null;
         NotificationManager notificationManager = getSystemService(NotificationManager.class);
         NotificationChannel notificationChannel = new NotificationChannel(
                 EXPORT_NOTIFICATION_CHANNEL,
@@ -139,32 +352,33 @@ public class ExportUpdateService extends Service {
         notificationStyle.bigText(fileName);
         notificationBuilder.setStyle(notificationStyle);
         notificationBuilder.setSmallIcon(R.drawable.ic_system_update);
+        notificationBuilder.addAction(android.R.drawable.ic_menu_close_clear_cancel,
+                getString(R.string.action_cancel),
+                getStopPendingIntent());
 
-        FileUtils.ProgressCallBack progressCallBack = new FileUtils.ProgressCallBack() {
-            private long mLastUpdate = -1;
-
-            @Override
-            public void update(int progress) {
-                long now = SystemClock.elapsedRealtime();
-                if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                    String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-                    notificationStyle.setSummaryText(percent);
-                    notificationBuilder.setProgress(100, progress, false);
-                    notificationManager.notify(NOTIFICATION_ID,
-                            notificationBuilder.build());
-                    mLastUpdate = now;
-                }
-            }
+        // Already rate limited by the copy
+        FileUtils.ProgressCallBack progressCallBack = progress -> {
+            String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
+            notificationStyle.setSummaryText(percent);
+            notificationBuilder.setProgress(100, progress, false);
+            notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
         };
 
         startForeground(NOTIFICATION_ID, notificationBuilder.build(),
                 ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE);
         notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
 
-        Runnable runnableComplete = () -> {
+        BiConsumer<String, Boolean> runnableComplete = (checksum, checksumWritten) -> {
+            String checksumText = getString(R.string.notification_export_checksum, checksum);
+            if (checksumWritten && checksumFileName != null) {
+                checksumText += "\n" + getString(R.string.notification_export_checksum_file,
+                        checksumFileName);
+            }
+            notificationBuilder.mActions.clear();
             notificationStyle.setSummaryText(null);
             notificationStyle.setBigContentTitle(
                     getString(R.string.notification_export_success));
+            notificationStyle.bigText(fileName + "\n" + checksumText);
             notificationBuilder.setContentTitle(
                     getString(R.string.notification_export_success));
             notificationBuilder.setProgress(0, 0, false);
@@ -174,6 +388,10 @@ public class ExportUpdateService extends Service {
         };
 
         Runnable runnableFailed = () -> {
+            notificationBuilder.mActions.clear();
+            notificationBuilder.addAction(R.drawable.ic_system_update,
+                    getString(R.string.notification_export_retry),
+                    getRetryPendingIntent(source, destination, checksumDestination));
             notificationStyle.setSummaryText(null);
             notificationStyle.setBigContentTitle(
                     getString(R.string.notification_export_fail));
@@ -185,9 +403,30 @@ public class ExportUpdateService extends Service {
             stopForeground(STOP_FOREGROUND_DETACH);
         };
 
+        Runnable runnableCancelled = () -> stopForeground(STOP_FOREGROUND_REMOVE);
+
         ExportRunnable exportRunnable = new ExportRunnable(getContentResolver(), source,
-                destination, progressCallBack, runnableComplete, runnableFailed);
+                destination, checksumDestination, fileName, progressCallBack, runnableComplete,
+                runnableFailed, runnableCancelled);
         mExportThread = new Thread(exportRunnable);
         mExportThread.start();
     }
+
+    private PendingIntent getStopPendingIntent() {
+        final Intent intent = new Intent(this, ExportUpdateService.class);
+        intent.setAction(ACTION_STOP_EXPORTING);
+        return PendingIntent.getService(this, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private PendingIntent getRetryPendingIntent(File source, Uri destination,
+                                                Uri checksumDestination) {
+        final Intent intent = new Intent(this, ExportUpdateService.class);
+        intent.setAction(ACTION_START_EXPORTING);
+        intent.putExtra(EXTRA_SOURCE_FILE, source);
+        intent.putExtra(EXTRA_DEST_URI, destination);
+        intent.putExtra(EXTRA_CHECKSUM_URI, checksumDestination);
+        return PendingIntent.getService(this, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
 }
@@ -21,36 +21,38 @@ import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
+import org.lineageos.updater.misc.FileUtils;
 import org.lineageos.updater.misc.StringGenerator;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.misc.ZipStreamScanner;
+import org.lineageos.updater.model.PackageMetadata;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Arrays;
 
 public class UpdateImporter {
     private static final int REQUEST_PICK = 9061;
     private static final String TAG = "UpdateImporter";
     private static final String MIME_ZIP = "application/zip";
     private static final String FILE_NAME = "localUpdate.zip";
-    private static final String METADATA_PATH = "META-INF/com/android/metadata";
-    private static final String METADATA_TIMESTAMP_KEY = "post-timestamp=";
+    private static final String XATTR_SELINUX = "security.selinux";
 
     private final Activity activity;
     private final Callbacks callbacks;
@@ -91,10 +93,19 @@ public class UpdateImporter {
         workingThread = new Thread(() -> {
             File importedFile = null;
             try {
-                importedFile = importFile(uri);
+                // The metadata is read from the stream while copying, the copy is
+                // verified right after, while it's still in the page cache
+                final ZipStreamScanner scanner = new ZipStreamScanner();
+                importedFile = importFile(uri, scanner);
                 verifyPackage(importedFile);
 
-                final Update update = buildLocalUpdate(importedFile);
+                PackageMetadata packageMetadata = scanner.getPackageMetadata();
+                if (packageMetadata == null) {
+                    Log.d(TAG, "Package not scanned, reading its central directory");
+                    packageMetadata = Utils.readPackageMetadata(importedFile);
+                }
+                final Update update = buildLocalUpdate(importedFile, packageMetadata);
+                update.setVerificationKey(FileUtils.computeFingerprint(importedFile));
                 addUpdate(update);
                 activity.runOnUiThread(() -> callbacks.onImportCompleted(update));
             } catch (Exception e) {
@@ -113,39 +124,99 @@ public class UpdateImporter {
 
     @SuppressLint("SetWorldReadable")
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private File importFile(Uri uri) throws IOException {
+    private File importFile(Uri uri, FileUtils.DataListener dataListener) throws IOException {
         final ParcelFileDescriptor parcelDescriptor = activity.getContentResolver()
                 .openFileDescriptor(uri, "r");
         if (parcelDescriptor == null) {
             throw new IOException("Failed to obtain fileDescriptor");
         }
 
-        final FileInputStream iStream = new FileInputStream(parcelDescriptor
-                .getFileDescriptor());
         final File downloadDir = Utils.getDownloadPath(activity);
         final File outFile = new File(downloadDir, FILE_NAME);
         if (outFile.exists()) {
             outFile.delete();
         }
-        final FileOutputStream oStream = new FileOutputStream(outFile);
 
-        int read;
-        final byte[] buffer = new byte[4096];
-        while ((read = iStream.read(buffer)) > 0) {
-            oStream.write(buffer, 0, read);
+        if (linkFile(parcelDescriptor, downloadDir, outFile)) {
+            // Nothing was streamed, the metadata is read from the central directory
+            parcelDescriptor.close();
+            return outFile;
+        }
+
+        try (FileChannel iChannel = new FileInputStream(parcelDescriptor
+                .getFileDescriptor()).getChannel();
+             FileChannel oChannel = new FileOutputStream(outFile).getChannel()) {
+            FileUtils.copy(iChannel, oChannel, 0, parcelDescriptor.getStatSize(), dataListener,
+                    progress -> activity.runOnUiThread(
+                            () -> callbacks.onImportProgress(false, progress)));
+        } finally {
+            parcelDescriptor.close();
         }
-        oStream.flush();
-        oStream.close();
-        iStream.close();
-        parcelDescriptor.close();
 
         outFile.setReadable(true, false);
 
         return outFile;
     }
 
-    private Update buildLocalUpdate(File file) {
-        final long timeStamp = getTimeStamp(file);
+    /**
+     * Link the picked file into the download directory if both are on the same
+     * filesystem, so that the package doesn't have to be copied. The link
+     * shares the owner, mode and label of the picked file, so it's only kept
+     * if the installer can read it like a copy.
+     *
+     * @return whether the file was linked
+     */
+    private static boolean linkFile(ParcelFileDescriptor parcelDescriptor, File downloadDir,
+            File outFile) {
+        try {
+            StructStat stat = Os.fstat(parcelDescriptor.getFileDescriptor());
+            StructStat dirStat = Os.stat(downloadDir.getAbsolutePath());
+            if (!OsConstants.S_ISREG(stat.st_mode) || stat.st_dev != dirStat.st_dev) {
+                return false;
+            }
+            String path = Os.readlink("/proc/self/fd/" + parcelDescriptor.getFd());
+            StructStat pathStat = Os.stat(path);
+            if (pathStat.st_dev != stat.st_dev || pathStat.st_ino != stat.st_ino) {
+                // The path doesn't lead to the file we were given
+                return false;
+            }
+            Os.link(path, outFile.getAbsolutePath());
+        } catch (ErrnoException e) {
+            Log.d(TAG, "Could not link the package, copying it", e);
+            return false;
+        }
+
+        // Changing the mode of the link would change the picked file too
+        if (!isReadableLikeCopy(outFile, downloadDir)) {
+            Log.d(TAG, "The linked package can't be read by the installer, copying it");
+            if (!outFile.delete()) {
+                Log.e(TAG, "Could not delete " + outFile);
+            }
+            return false;
+        }
+        Log.d(TAG, "Linked the picked file to " + outFile);
+        return true;
+    }
+
+    /**
+     * @return whether the file has the owner and label of the files created in
+     *         the directory and can be read by everyone, like the copies
+     */
+    private static boolean isReadableLikeCopy(File file, File dir) {
+        try {
+            StructStat stat = Os.stat(file.getAbsolutePath());
+            StructStat dirStat = Os.stat(dir.getAbsolutePath());
+            return stat.st_uid == dirStat.st_uid &&
+                    (stat.st_mode & OsConstants.S_IROTH) != 0 &&
+                    Arrays.equals(Os.getxattr(file.getAbsolutePath(), XATTR_SELINUX),
+                            Os.getxattr(dir.getAbsolutePath(), XATTR_SELINUX));
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private Update buildLocalUpdate(File file, PackageMetadata packageMetadata) {
+        final long timeStamp = getTimeStamp(packageMetadata);
         final String buildDate = StringGenerator.getDateLocalizedUTC(
                 activity, DateFormat.MEDIUM, timeStamp);
         final String name = activity.getString(R.string.local_update_name);
@@ -159,13 +230,15 @@ public class UpdateImporter {
         update.setStatus(UpdateStatus.VERIFIED);
         update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
         update.setVersion(String.format("%s (%s)", name, buildDate));
+        update.setPackageMetadata(packageMetadata);
         return update;
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private void verifyPackage(File file) throws Exception {
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
+            android.os.RecoverySystem.verifyPackage(file, progress -> activity.runOnUiThread(
+                    () -> callbacks.onImportProgress(true, progress)), null);
         } catch (Exception e) {
             if (file.exists()) {
                 file.delete();
@@ -177,65 +250,30 @@ public class UpdateImporter {
 
     private void addUpdate(Update update) {
         UpdaterController controller = UpdaterController.getInstance(activity);
+        // Don't let the stored updates, loaded later, replace the imported one
+        controller.awaitReady();
         controller.addUpdate(update, false);
     }
 
-    private long getTimeStamp(File file) {
-        try {
-            final String metadataContent = readZippedFile(file, METADATA_PATH);
-            final String[] lines = metadataContent.split("\n");
-            for (String line : lines) {
-                if (!line.startsWith(METADATA_TIMESTAMP_KEY)) {
-                    continue;
-                }
-
-                final String timeStampStr = line.replace(METADATA_TIMESTAMP_KEY, "");
-                return Long.parseLong(timeStampStr);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to read date from local update zip package", e);
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Failed to parse timestamp number from zip metadata file", e);
+    private long getTimeStamp(PackageMetadata packageMetadata) {
+        final long timeStamp = packageMetadata.getTimestamp();
+        if (timeStamp >= 0) {
+            return timeStamp;
         }
 
         Log.e(TAG, "Couldn't find timestamp in zip file, falling back to $now");
         return System.currentTimeMillis() / 1000;
     }
 
-    private String readZippedFile(File file, String path) throws IOException {
-        final StringBuilder sb = new StringBuilder();
-        InputStream iStream = null;
-
-        try (final ZipFile zip = new ZipFile(file)) {
-            final ZipEntry entry = zip.getEntry(path);
-            if (entry != null) {
-                iStream = zip.getInputStream(entry);
-            }
-
-            if (iStream == null) {
-                throw new FileNotFoundException("Couldn't find " + path + " in " + file.getName());
-            }
-
-            final byte[] buffer = new byte[1024];
-            int read;
-            while ((read = iStream.read(buffer)) > 0) {
-                sb.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to read file from zip package", e);
-            throw e;
-        } finally {
-            if (iStream != null) {
-                iStream.close();
-            }
-        }
-
-        return sb.toString();
-    }
-
     public interface Callbacks {
         void onImportStarted();
 
+        /**
+         * @param verifying whether the package is being verified, or copied
+         * @param progress the percentage of the current step
+         */
+        void onImportProgress(boolean verifying, int progress);
+
         void onImportCompleted(Update update);
     }
 }
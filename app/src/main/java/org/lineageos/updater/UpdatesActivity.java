@@ -18,11 +18,9 @@ package org.lineageos.updater;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.UiModeManager;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
@@ -48,28 +46,32 @@ import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.widget.SwitchCompat;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.view.WindowInsetsCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.SimpleItemAnimator;
 
 import com.google.android.material.appbar.AppBarLayout;
 import com.google.android.material.appbar.CollapsingToolbarLayout;
+import com.google.android.material.progressindicator.CircularProgressIndicator;
 import com.google.android.material.snackbar.Snackbar;
 
 import org.json.JSONException;
+import org.lineageos.updater.controller.UpdateEvent;
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
 import org.lineageos.updater.download.DownloadClient;
 import org.lineageos.updater.misc.BuildInfoUtils;
 import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.FileUtils;
 import org.lineageos.updater.misc.StringGenerator;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.Update;
@@ -78,23 +80,33 @@ import org.lineageos.updater.model.UpdateInfo;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class UpdatesActivity extends UpdatesListActivity implements UpdateImporter.Callbacks {
 
     private static final String TAG = "UpdatesActivity";
+
+    // The export in progress, kept while the pickers are shown
+    private static final String STATE_EXPORT_SOURCE = "export_source";
+    private static final String STATE_EXPORT_DESTINATION = "export_destination";
     private UpdaterService mUpdaterService;
-    private BroadcastReceiver mBroadcastReceiver;
+    private UpdaterController.UpdateListener mUpdateListener;
 
     private UpdatesListAdapter mAdapter;
+    // The updates shown, sorted. Only replaced, never modified
+    private List<UpdateInfo> mUpdates = Collections.emptyList();
+    private final ExecutorService mListExecutor = Executors.newSingleThreadExecutor();
 
     private View mRefreshIconView;
     private RotateAnimation mRefreshAnimation;
 
     private boolean mIsTV;
 
-    private UpdateInfo mToBeExported = null;
+    private File mExportSource = null;
+    private Uri mExportDestination = null;
     private final ActivityResultLauncher<Intent> mExportUpdate = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
             result -> {
@@ -102,10 +114,20 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                     Intent intent = result.getData();
                     if (intent != null) {
                         Uri uri = intent.getData();
-                        exportUpdate(uri);
+                        exportChecksum(uri);
                     }
                 }
             });
+    private final ActivityResultLauncher<Intent> mExportChecksum = registerForActivityResult(
+            new ActivityResultContracts.StartActivityForResult(),
+            result -> {
+                // The checksum file is optional, export anyway
+                Uri uri = null;
+                if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
+                    uri = result.getData().getData();
+                }
+                exportUpdate(mExportDestination, uri);
+            });
 
     private UpdateImporter mUpdateImporter;
     private AlertDialog importDialog;
@@ -115,6 +137,11 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_updates);
 
+        if (savedInstanceState != null) {
+            mExportSource = (File) savedInstanceState.getSerializable(STATE_EXPORT_SOURCE);
+            mExportDestination = savedInstanceState.getParcelable(STATE_EXPORT_DESTINATION);
+        }
+
         mUpdateImporter = new UpdateImporter(this, this);
 
         UiModeManager uiModeManager = getSystemService(UiModeManager.class);
@@ -130,28 +157,25 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             ((SimpleItemAnimator) animator).setSupportsChangeAnimations(false);
         }
 
-        mBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    handleDownloadStatusChange(downloadId);
-                    mAdapter.notifyItemChanged(downloadId);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction()) ||
-                        UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    mAdapter.notifyItemChanged(downloadId);
-                } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
-                    String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    mAdapter.removeItem(downloadId);
-                    List<UpdateInfo> sortedUpdates =
-                            mUpdaterService.getUpdaterController().getUpdates();
-                    if (sortedUpdates.isEmpty()) {
+        mUpdateListener = event -> {
+            switch (event.getType()) {
+                case STATUS_CHANGED:
+                    handleDownloadStatusChange(event);
+                    mAdapter.notifyItemChanged(event);
+                    break;
+                case DOWNLOAD_PROGRESS:
+                case INSTALL_PROGRESS:
+                case VERIFICATION_PROGRESS:
+                    mAdapter.notifyItemChanged(event);
+                    break;
+                case REMOVED:
+                    mAdapter.removeItem(event.getDownloadId());
+                    if (mAdapter.getItemCount() == 0) {
                         findViewById(R.id.no_new_updates_view).setVisibility(View.VISIBLE);
                         findViewById(R.id.recycler_view).setVisibility(View.GONE);
                     }
                     downloadUpdatesList(false);
-                }
+                    break;
             }
         };
 
@@ -237,13 +261,19 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         Intent intent = new Intent(this, UpdaterService.class);
         startService(intent);
         bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+    }
 
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putSerializable(STATE_EXPORT_SOURCE, mExportSource);
+        outState.putParcelable(STATE_EXPORT_DESTINATION, mExportDestination);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mListExecutor.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -259,8 +289,10 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
 
     @Override
     public void onStop() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
         if (mUpdaterService != null) {
+            UpdaterController controller = mUpdaterService.getUpdaterController();
+            controller.removeUpdateListener(mUpdateListener);
+            controller.setProgressInterval(UpdaterController.PROGRESS_INTERVAL_DEFAULT_MS);
             unbindService(mConnection);
         }
         super.onStop();
@@ -321,6 +353,22 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         importDialog.show();
     }
 
+    @Override
+    public void onImportProgress(boolean verifying, int progress) {
+        if (importDialog == null) {
+            return;
+        }
+        CircularProgressIndicator progressBar = importDialog.findViewById(R.id.progressBar);
+        TextView progressText = importDialog.findViewById(R.id.progressText);
+        if (progressBar == null || progressText == null) {
+            return;
+        }
+        progressBar.setIndeterminate(false);
+        progressBar.setProgressCompat(progress, true);
+        progressText.setText(verifying ? R.string.local_update_verify_progress :
+                R.string.local_update_import_progress);
+    }
+
     @Override
     public void onImportCompleted(Update update) {
         if (importDialog != null) {
@@ -362,93 +410,143 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                 IBinder service) {
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
-            mAdapter.setUpdaterController(mUpdaterService.getUpdaterController());
-            getUpdatesList();
+            UpdaterController controller = mUpdaterService.getUpdaterController();
+            controller.addUpdateListener(mUpdateListener, getMainExecutor());
+            controller.setProgressInterval(UpdaterController.PROGRESS_INTERVAL_FOREGROUND_MS);
+            mAdapter.setUpdaterController(controller);
+            controller.whenReady(() -> {
+                if (mUpdaterService != null) {
+                    getUpdatesList();
+                }
+            }, getMainExecutor());
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mUpdaterService.getUpdaterController().removeUpdateListener(mUpdateListener);
             mAdapter.setUpdaterController(null);
             mUpdaterService = null;
             mAdapter.notifyDataSetChanged();
         }
     };
 
-    private void loadUpdatesList(File jsonFile, boolean manualRefresh)
-            throws IOException, JSONException {
-        Log.d(TAG, "Adding remote updates");
-        UpdaterController controller = mUpdaterService.getUpdaterController();
-        boolean newUpdates = false;
-
-        List<UpdateInfo> updates = Utils.parseJson(jsonFile, true);
-        List<String> updatesOnline = new ArrayList<>();
-        for (UpdateInfo update : updates) {
-            newUpdates |= controller.addUpdate(update);
-            updatesOnline.add(update.getDownloadId());
+    /**
+     * Load the updates in the background and show them once sorted, only
+     * rebinding the rows that changed.
+     *
+     * @param jsonNew a freshly downloaded list to merge with the catalog first,
+     *                deleted once read. If null, the catalog is downloaded when
+     *                empty.
+     * @param manualRefresh whether to tell the user if there are new updates
+     */
+    private void loadUpdatesList(File jsonNew, boolean manualRefresh) {
+        if (isDestroyed()) {
+            if (jsonNew != null) {
+                //noinspection ResultOfMethodCallIgnored
+                jsonNew.delete();
+            }
+            return;
         }
-        controller.setUpdatesAvailableOnline(updatesOnline, true);
+        UpdaterController controller = UpdaterController.getInstance(this);
+        List<UpdateInfo> previousUpdates = mUpdates;
+        mListExecutor.execute(() -> {
+            List<UpdateInfo> addedUpdates = null;
+            if (jsonNew != null) {
+                try {
+                    addedUpdates = Utils.updateCatalog(this, jsonNew);
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, "Could not read json", e);
+                    runOnUiThread(() -> {
+                        showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+                        refreshAnimationStop();
+                    });
+                    return;
+                } finally {
+                    //noinspection ResultOfMethodCallIgnored
+                    jsonNew.delete();
+                }
+            } else if (UpdatesDbHelper.getInstance(this).isCatalogEmpty()) {
+                runOnUiThread(() -> downloadUpdatesList(false));
+                return;
+            }
 
-        if (manualRefresh) {
-            showSnackbar(
-                    newUpdates ? R.string.snack_updates_found : R.string.snack_no_updates_found,
-                    Snackbar.LENGTH_SHORT);
-        }
+            Log.d(TAG, "Adding remote updates");
+            controller.awaitReady();
+            boolean newUpdates = false;
+            List<String> updatesOnline = new ArrayList<>();
+            for (UpdateInfo update : Utils.getCompatibleCatalog(this)) {
+                newUpdates |= controller.addUpdate(update);
+                updatesOnline.add(update.getDownloadId());
+            }
+            controller.setUpdatesAvailableOnline(updatesOnline, true);
+
+            List<UpdateInfo> sortedUpdates = controller.getUpdates();
+            sortedUpdates.sort((u1, u2) -> Long.compare(u2.getTimestamp(), u1.getTimestamp()));
+            List<UpdateInfo> updates = Collections.unmodifiableList(sortedUpdates);
+            DiffUtil.DiffResult diff =
+                    UpdatesListAdapter.calculateDiff(previousUpdates, updates);
+
+            final List<UpdateInfo> checkedUpdates = addedUpdates;
+            final boolean foundUpdates = newUpdates;
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                showUpdatesList(previousUpdates, updates, diff);
+                if (jsonNew != null) {
+                    onUpdatesListChecked(checkedUpdates, foundUpdates, manualRefresh);
+                }
+            });
+        });
+    }
 
-        List<String> updateIds = new ArrayList<>();
-        List<UpdateInfo> sortedUpdates = controller.getUpdates();
-        if (sortedUpdates.isEmpty()) {
+    private void showUpdatesList(List<UpdateInfo> previousUpdates, List<UpdateInfo> updates,
+            DiffUtil.DiffResult diff) {
+        mUpdates = updates;
+        if (updates.isEmpty()) {
             findViewById(R.id.no_new_updates_view).setVisibility(View.VISIBLE);
             findViewById(R.id.recycler_view).setVisibility(View.GONE);
         } else {
             findViewById(R.id.no_new_updates_view).setVisibility(View.GONE);
             findViewById(R.id.recycler_view).setVisibility(View.VISIBLE);
-            sortedUpdates.sort((u1, u2) -> Long.compare(u2.getTimestamp(), u1.getTimestamp()));
-            for (UpdateInfo update : sortedUpdates) {
-                updateIds.add(update.getDownloadId());
-            }
-            mAdapter.setData(updateIds);
-            mAdapter.notifyDataSetChanged();
         }
+        mAdapter.setData(getDownloadIds(updates), getDownloadIds(previousUpdates), diff);
+        Log.d(TAG, "Updates list loaded");
     }
 
-    private void getUpdatesList() {
-        File jsonFile = Utils.getCachedUpdateList(this);
-        if (jsonFile.exists()) {
-            try {
-                loadUpdatesList(jsonFile, false);
-                Log.d(TAG, "Cached list parsed");
-            } catch (IOException | JSONException e) {
-                Log.e(TAG, "Error while parsing json list", e);
-            }
-        } else {
-            downloadUpdatesList(false);
+    private void onUpdatesListChecked(List<UpdateInfo> addedUpdates, boolean newUpdates,
+            boolean manualRefresh) {
+        if (manualRefresh) {
+            showSnackbar(
+                    newUpdates ? R.string.snack_updates_found : R.string.snack_no_updates_found,
+                    Snackbar.LENGTH_SHORT);
         }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        long millis = System.currentTimeMillis();
+        preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
+        updateLastCheckedString();
+        if (Utils.isUpdateCheckEnabled(this) && Utils.checkForNewUpdates(addedUpdates)) {
+            UpdatesCheckReceiver.updateRepeatingUpdatesCheck(this);
+        }
+        // In case we set a one-shot check because of a previous failure
+        UpdatesCheckReceiver.cancelUpdatesCheck(this);
+        refreshAnimationStop();
     }
 
-    private void processNewJson(File json, File jsonNew, boolean manualRefresh) {
-        try {
-            loadUpdatesList(jsonNew, manualRefresh);
-            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
-            long millis = System.currentTimeMillis();
-            preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
-            updateLastCheckedString();
-            if (json.exists() && Utils.isUpdateCheckEnabled(this) &&
-                    Utils.checkForNewUpdates(json, jsonNew)) {
-                UpdatesCheckReceiver.updateRepeatingUpdatesCheck(this);
-            }
-            // In case we set a one-shot check because of a previous failure
-            UpdatesCheckReceiver.cancelUpdatesCheck(this);
-            //noinspection ResultOfMethodCallIgnored
-            jsonNew.renameTo(json);
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Could not read json", e);
-            showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+    private static List<String> getDownloadIds(List<UpdateInfo> updates) {
+        List<String> downloadIds = new ArrayList<>(updates.size());
+        for (UpdateInfo update : updates) {
+            downloadIds.add(update.getDownloadId());
         }
+        return downloadIds;
+    }
+
+    private void getUpdatesList() {
+        loadUpdatesList(null, false);
     }
 
     private void downloadUpdatesList(final boolean manualRefresh) {
-        final File jsonFile = Utils.getCachedUpdateList(this);
-        final File jsonFileTmp = new File(jsonFile.getAbsolutePath() + UUID.randomUUID());
+        final File jsonFileTmp = Utils.getUpdateListTempFile(this);
         String url = Utils.getServerURL(this);
         Log.d(TAG, "Checking " + url);
 
@@ -456,6 +554,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             @Override
             public void onFailure(final boolean cancelled) {
                 Log.e(TAG, "Could not download updates list");
+                //noinspection ResultOfMethodCallIgnored
+                jsonFileTmp.delete();
                 runOnUiThread(() -> {
                     if (!cancelled) {
                         showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
@@ -470,11 +570,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
 
             @Override
             public void onSuccess() {
-                runOnUiThread(() -> {
-                    Log.d(TAG, "List downloaded");
-                    processNewJson(jsonFile, jsonFileTmp, manualRefresh);
-                    refreshAnimationStop();
-                });
+                Log.d(TAG, "List downloaded");
+                runOnUiThread(() -> loadUpdatesList(jsonFileTmp, manualRefresh));
             }
         };
 
@@ -506,13 +603,12 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         headerLastCheck.setText(lastCheckString);
     }
 
-    private void handleDownloadStatusChange(String downloadId) {
-        if (Update.LOCAL_ID.equals(downloadId)) {
+    private void handleDownloadStatusChange(UpdateEvent event) {
+        if (Update.LOCAL_ID.equals(event.getDownloadId())) {
             return;
         }
 
-        UpdateInfo update = mUpdaterService.getUpdaterController().getUpdate(downloadId);
-        switch (update.getStatus()) {
+        switch (event.getStatus()) {
             case PAUSED_ERROR:
                 showSnackbar(R.string.snack_download_failed, Snackbar.LENGTH_LONG);
                 break;
@@ -527,7 +623,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
 
     @Override
     public void exportUpdate(UpdateInfo update) {
-        mToBeExported = update;
+        mExportSource = update.getFile();
 
         Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
@@ -537,14 +633,48 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         mExportUpdate.launch(intent);
     }
 
-    private void exportUpdate(Uri uri) {
+    /**
+     * Ask where to save the checksum of the update, next to the update itself
+     */
+    private void exportChecksum(Uri destination) {
+        mExportDestination = destination;
+
+        String name = FileUtils.queryName(getContentResolver(), destination);
+        if (name == null) {
+            name = mExportSource.getName();
+        }
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_TITLE, name + ".sha256");
+
+        mExportChecksum.launch(intent);
+    }
+
+    private void exportUpdate(Uri destination, Uri checksumDestination) {
+        // Keep access to the destinations to retry the export later
+        keepUriPermission(destination);
+        if (checksumDestination != null) {
+            keepUriPermission(checksumDestination);
+        }
         Intent intent = new Intent(this, ExportUpdateService.class);
         intent.setAction(ExportUpdateService.ACTION_START_EXPORTING);
-        intent.putExtra(ExportUpdateService.EXTRA_SOURCE_FILE, mToBeExported.getFile());
-        intent.putExtra(ExportUpdateService.EXTRA_DEST_URI, uri);
+        intent.putExtra(ExportUpdateService.EXTRA_SOURCE_FILE, mExportSource);
+        intent.putExtra(ExportUpdateService.EXTRA_DEST_URI, destination);
+        intent.putExtra(ExportUpdateService.EXTRA_CHECKSUM_URI, checksumDestination);
         startService(intent);
     }
 
+    private void keepUriPermission(Uri uri) {
+        try {
+            getContentResolver().takePersistableUriPermission(uri,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                            Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Could not keep access to " + uri, e);
+        }
+    }
+
     @Override
     public void showSnackbar(int stringId, int duration) {
         Snackbar.make(findViewById(R.id.main_container), stringId, duration).show();
@@ -33,11 +33,12 @@ import org.json.JSONException;
 import org.lineageos.updater.download.DownloadClient;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.UpdateInfo;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
-import java.util.UUID;
+import java.util.List;
 
 public class UpdatesCheckReceiver extends BroadcastReceiver {
 
@@ -73,13 +74,14 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
             return;
         }
 
-        final File json = Utils.getCachedUpdateList(context);
-        final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
+        final File jsonNew = Utils.getUpdateListTempFile(context);
         String url = Utils.getServerURL(context);
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
             @Override
             public void onFailure(boolean cancelled) {
                 Log.e(TAG, "Could not download updates list, scheduling new check");
+                //noinspection ResultOfMethodCallIgnored
+                jsonNew.delete();
                 scheduleUpdatesCheck(context);
             }
 
@@ -90,12 +92,11 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
             @Override
             public void onSuccess() {
                 try {
-                    if (json.exists() && Utils.checkForNewUpdates(json, jsonNew)) {
+                    List<UpdateInfo> addedUpdates = Utils.updateCatalog(context, jsonNew);
+                    if (Utils.checkForNewUpdates(addedUpdates)) {
                         showNotification(context);
                         updateRepeatingUpdatesCheck(context);
                     }
-                    //noinspection ResultOfMethodCallIgnored
-                    jsonNew.renameTo(json);
                     long currentMillis = System.currentTimeMillis();
                     preferences.edit()
                             .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
@@ -105,6 +106,9 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
                 } catch (IOException | JSONException e) {
                     Log.e(TAG, "Could not parse list, scheduling new check", e);
                     scheduleUpdatesCheck(context);
+                } finally {
+                    //noinspection ResultOfMethodCallIgnored
+                    jsonNew.delete();
                 }
             }
         };
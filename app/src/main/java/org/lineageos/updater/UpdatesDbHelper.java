@@ -15,14 +15,17 @@
  */
 package org.lineageos.updater;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 
+import org.lineageos.updater.model.PackageMetadata;
 import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateInfo;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -30,7 +33,6 @@ import java.util.List;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -42,8 +44,38 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TYPE = "type";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_AB_UPDATE = "ab_update";
+        public static final String COLUMN_NAME_PAYLOAD_OFFSET = "payload_offset";
+        public static final String COLUMN_NAME_PAYLOAD_SIZE = "payload_size";
+        public static final String COLUMN_NAME_PAYLOAD_PROPERTIES = "payload_properties";
+        public static final String COLUMN_NAME_METADATA = "metadata";
+        public static final String COLUMN_NAME_VERIFICATION_KEY = "verification_key";
+        public static final String COLUMN_NAME_CHECKPOINT = "checkpoint";
+        public static final String COLUMN_NAME_ETAG = "etag";
+        public static final String COLUMN_NAME_LAST_MODIFIED = "last_modified";
+        public static final String COLUMN_NAME_DIGEST = "digest";
+        public static final String COLUMN_NAME_CHUNK_MANIFEST_URL = "chunk_manifest_url";
     }
 
+    /**
+     * The updates offered by the server in the last fetched list
+     */
+    public static class CatalogEntry implements BaseColumns {
+        public static final String TABLE_NAME = "catalog";
+        public static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
+        public static final String COLUMN_NAME_NAME = "name";
+        public static final String COLUMN_NAME_TIMESTAMP = "timestamp";
+        public static final String COLUMN_NAME_TYPE = "type";
+        public static final String COLUMN_NAME_VERSION = "version";
+        public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_URL = "url";
+        public static final String COLUMN_NAME_CHUNK_MANIFEST_URL = "chunk_manifest_url";
+        // The merges in which the entry was first and last seen
+        public static final String COLUMN_NAME_FIRST_SEEN = "first_seen";
+        public static final String COLUMN_NAME_LAST_SEEN = "last_seen";
+    }
+
+    // The schema of the first version, later versions are reached through MIGRATIONS
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + UpdateEntry.TABLE_NAME + " (" +
                     UpdateEntry._ID + " INTEGER PRIMARY KEY," +
@@ -55,62 +87,146 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
                     UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
 
+    /**
+     * The statements that upgrade the database from each version to the next
+     * one, the first element upgrades it from version 1 to version 2. They
+     * must only add to the schema, so that the updates being downloaded
+     * survive the upgrade. New versions are added at the end.
+     */
+    private static final String[][] MIGRATIONS = {
+            // 2: the package metadata, NULL until it's extracted
+            {
+                    addColumn(UpdateEntry.COLUMN_NAME_AB_UPDATE, "INTEGER"),
+                    addColumn(UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET, "INTEGER"),
+                    addColumn(UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE, "INTEGER"),
+                    addColumn(UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES, "TEXT"),
+                    addColumn(UpdateEntry.COLUMN_NAME_METADATA, "TEXT"),
+            },
+            // 3: the identity of the file when it was last verified
+            {
+                    addColumn(UpdateEntry.COLUMN_NAME_VERIFICATION_KEY, "TEXT"),
+            },
+            // 4: the bytes known to be downloaded correctly, the validators
+            // of the server copy to resume from and the digest of the package
+            {
+                    addColumn(UpdateEntry.COLUMN_NAME_CHECKPOINT, "INTEGER"),
+                    addColumn(UpdateEntry.COLUMN_NAME_ETAG, "TEXT"),
+                    addColumn(UpdateEntry.COLUMN_NAME_LAST_MODIFIED, "TEXT"),
+                    addColumn(UpdateEntry.COLUMN_NAME_DIGEST, "TEXT"),
+            },
+            // 5: the catalog, replacing the cached json list
+            {
+                    "CREATE TABLE " + CatalogEntry.TABLE_NAME + " (" +
+                            CatalogEntry._ID + " INTEGER PRIMARY KEY," +
+                            CatalogEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
+                            CatalogEntry.COLUMN_NAME_NAME + " TEXT," +
+                            CatalogEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
+                            CatalogEntry.COLUMN_NAME_TYPE + " TEXT," +
+                            CatalogEntry.COLUMN_NAME_VERSION + " TEXT," +
+                            CatalogEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                            CatalogEntry.COLUMN_NAME_URL + " TEXT," +
+                            CatalogEntry.COLUMN_NAME_CHUNK_MANIFEST_URL + " TEXT," +
+                            CatalogEntry.COLUMN_NAME_FIRST_SEEN + " INTEGER," +
+                            CatalogEntry.COLUMN_NAME_LAST_SEEN + " INTEGER)",
+                    "CREATE INDEX catalog_timestamp ON " + CatalogEntry.TABLE_NAME + " (" +
+                            CatalogEntry.COLUMN_NAME_TIMESTAMP + ")",
+                    "CREATE INDEX catalog_type ON " + CatalogEntry.TABLE_NAME + " (" +
+                            CatalogEntry.COLUMN_NAME_TYPE + " COLLATE NOCASE)",
+            },
+            // 6: the chunk manifest, to repair the download once it's no
+            // longer in the catalog
+            {
+                    addColumn(UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST_URL, "TEXT"),
+            },
+    };
+
+    public static final int DATABASE_VERSION = MIGRATIONS.length + 1;
+
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
 
-    public UpdatesDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
-    }
+    private static final String SQL_DELETE_CATALOG =
+            "DROP TABLE IF EXISTS " + CatalogEntry.TABLE_NAME;
 
-    public void onCreate(SQLiteDatabase db) {
-        db.execSQL(SQL_CREATE_ENTRIES);
+    private static final String SQL_UPSERT_CATALOG =
+            "INSERT INTO " + CatalogEntry.TABLE_NAME + " (" +
+                    CatalogEntry.COLUMN_NAME_DOWNLOAD_ID + "," +
+                    CatalogEntry.COLUMN_NAME_NAME + "," +
+                    CatalogEntry.COLUMN_NAME_TIMESTAMP + "," +
+                    CatalogEntry.COLUMN_NAME_TYPE + "," +
+                    CatalogEntry.COLUMN_NAME_VERSION + "," +
+                    CatalogEntry.COLUMN_NAME_SIZE + "," +
+                    CatalogEntry.COLUMN_NAME_URL + "," +
+                    CatalogEntry.COLUMN_NAME_CHUNK_MANIFEST_URL + "," +
+                    CatalogEntry.COLUMN_NAME_FIRST_SEEN + "," +
+                    CatalogEntry.COLUMN_NAME_LAST_SEEN +
+                    ") VALUES (?,?,?,?,?,?,?,?,?,?) ON CONFLICT(" +
+                    CatalogEntry.COLUMN_NAME_DOWNLOAD_ID + ") DO UPDATE SET " +
+                    updateFromExcluded(CatalogEntry.COLUMN_NAME_NAME) + "," +
+                    updateFromExcluded(CatalogEntry.COLUMN_NAME_TIMESTAMP) + "," +
+                    updateFromExcluded(CatalogEntry.COLUMN_NAME_TYPE) + "," +
+                    updateFromExcluded(CatalogEntry.COLUMN_NAME_VERSION) + "," +
+                    updateFromExcluded(CatalogEntry.COLUMN_NAME_SIZE) + "," +
+                    updateFromExcluded(CatalogEntry.COLUMN_NAME_URL) + "," +
+                    updateFromExcluded(CatalogEntry.COLUMN_NAME_CHUNK_MANIFEST_URL) + "," +
+                    updateFromExcluded(CatalogEntry.COLUMN_NAME_LAST_SEEN);
+
+    // The list of updates that was cached before the catalog, version 5
+    private static final String LEGACY_UPDATE_LIST = "updates.json";
+
+    private static UpdatesDbHelper sInstance;
+
+    private final Context mContext;
+
+    public static synchronized UpdatesDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdatesDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
     }
 
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+    private UpdatesDbHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+        // Writes don't block the readers and commits need fewer syncs
+        setWriteAheadLoggingEnabled(true);
     }
 
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+    private static String updateFromExcluded(String column) {
+        return column + " = excluded." + column;
     }
 
-    public void addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        fillContentValues(update, values);
-        db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values, conflictAlgorithm);
+    private static String addColumn(String name, String type) {
+        return "ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " + name + " " + type;
     }
 
-    private static void fillContentValues(Update update, ContentValues values) {
-        values.put(UpdateEntry.COLUMN_NAME_STATUS, update.getPersistentStatus());
-        values.put(UpdateEntry.COLUMN_NAME_PATH, update.getFile().getAbsolutePath());
-        values.put(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID, update.getDownloadId());
-        values.put(UpdateEntry.COLUMN_NAME_TIMESTAMP, update.getTimestamp());
-        values.put(UpdateEntry.COLUMN_NAME_TYPE, update.getType());
-        values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
-        values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+    public void onCreate(SQLiteDatabase db) {
+        // Go through the migrations to get the same schema as upgraded databases
+        db.execSQL(SQL_CREATE_ENTRIES);
+        migrate(db, 1, DATABASE_VERSION);
     }
 
-    public void removeUpdate(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {downloadId};
-        db.delete(UpdateEntry.TABLE_NAME, selection, selectionArgs);
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        migrate(db, oldVersion, newVersion);
+        if (oldVersion < 5) {
+            // The catalog is filled again by the next check, drop the old list
+            //noinspection ResultOfMethodCallIgnored
+            new File(mContext.getCacheDir(), LEGACY_UPDATE_LIST).delete();
+        }
     }
 
-    public void changeUpdateStatus(Update update) {
-        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {update.getDownloadId()};
-        changeUpdateStatus(selection, selectionArgs, update.getPersistentStatus());
+    private static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        for (int version = fromVersion + 1; version <= toVersion; version++) {
+            for (String sql : MIGRATIONS[version - 2]) {
+                db.execSQL(sql);
+            }
+        }
     }
 
-    private void changeUpdateStatus(String selection, String[] selectionArgs,
-                                    int status) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(UpdateEntry.COLUMN_NAME_STATUS, status);
-        db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs);
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_CATALOG);
+        onCreate(db);
     }
 
     public List<Update> getUpdates() {
@@ -127,6 +243,13 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 UpdateEntry.COLUMN_NAME_VERSION,
                 UpdateEntry.COLUMN_NAME_STATUS,
                 UpdateEntry.COLUMN_NAME_SIZE,
+                UpdateEntry.COLUMN_NAME_AB_UPDATE,
+                UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET,
+                UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE,
+                UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES,
+                UpdateEntry.COLUMN_NAME_METADATA,
+                UpdateEntry.COLUMN_NAME_VERIFICATION_KEY,
+                UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST_URL,
         };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
         Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
@@ -150,10 +273,135 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 update.setPersistentStatus(cursor.getInt(index));
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
                 update.setFileSize(cursor.getLong(index));
+                update.setPackageMetadata(readPackageMetadata(cursor));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_VERIFICATION_KEY);
+                update.setVerificationKey(cursor.getString(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST_URL);
+                update.setChunkManifestUrl(cursor.getString(index));
                 updates.add(update);
             }
             cursor.close();
         }
         return updates;
     }
+
+    private static PackageMetadata readPackageMetadata(Cursor cursor) {
+        int index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_METADATA);
+        if (cursor.isNull(index)) {
+            return null;
+        }
+        String metadata = cursor.getString(index);
+        index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_AB_UPDATE);
+        boolean isAB = cursor.getInt(index) != 0;
+        index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET);
+        long payloadOffset = cursor.getLong(index);
+        index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE);
+        long payloadSize = cursor.getLong(index);
+        index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES);
+        String payloadProperties = cursor.getString(index);
+        return new PackageMetadata(isAB, payloadOffset, payloadSize,
+                PackageMetadata.parsePayloadProperties(payloadProperties),
+                PackageMetadata.parseMetadata(metadata));
+    }
+
+    /**
+     * Replace the catalog with the given list of updates in a single
+     * transaction. Updates that are no longer in the list are removed.
+     *
+     * @param updates the updates offered by the server
+     * @return the updates that weren't in the catalog before, empty if the
+     * catalog was empty since there's nothing to compare with
+     */
+    public List<UpdateInfo> mergeCatalog(List<UpdateInfo> updates) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            boolean wasEmpty = DatabaseUtils.queryNumEntries(db, CatalogEntry.TABLE_NAME) == 0;
+            long generation = DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MAX(" + CatalogEntry.COLUMN_NAME_LAST_SEEN + "), 0) + 1 FROM " +
+                            CatalogEntry.TABLE_NAME, null);
+            try (SQLiteStatement upsert = db.compileStatement(SQL_UPSERT_CATALOG)) {
+                for (UpdateInfo update : updates) {
+                    upsert.clearBindings();
+                    upsert.bindString(1, update.getDownloadId());
+                    bindString(upsert, 2, update.getName());
+                    upsert.bindLong(3, update.getTimestamp());
+                    bindString(upsert, 4, update.getType());
+                    bindString(upsert, 5, update.getVersion());
+                    upsert.bindLong(6, update.getFileSize());
+                    bindString(upsert, 7, update.getDownloadUrl());
+                    bindString(upsert, 8, update.getChunkManifestUrl());
+                    upsert.bindLong(9, generation);
+                    upsert.bindLong(10, generation);
+                    upsert.executeInsert();
+                }
+            }
+            String[] generationArgs = {String.valueOf(generation)};
+            db.delete(CatalogEntry.TABLE_NAME, CatalogEntry.COLUMN_NAME_LAST_SEEN + " != ?",
+                    generationArgs);
+            List<UpdateInfo> added = wasEmpty ? new ArrayList<>() : queryCatalog(db,
+                    CatalogEntry.COLUMN_NAME_FIRST_SEEN + " = ?", generationArgs);
+            db.setTransactionSuccessful();
+            return added;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public boolean isCatalogEmpty() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), CatalogEntry.TABLE_NAME) == 0;
+    }
+
+    /**
+     * @param type the type of the updates to return, case insensitive, or
+     *             null to return all of them
+     * @return the updates in the catalog, newest first
+     */
+    public List<UpdateInfo> getCatalog(String type) {
+        if (type == null) {
+            return queryCatalog(getReadableDatabase(), null, null);
+        }
+        return queryCatalog(getReadableDatabase(),
+                CatalogEntry.COLUMN_NAME_TYPE + " = ? COLLATE NOCASE", new String[]{type});
+    }
+
+    private static List<UpdateInfo> queryCatalog(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        String[] projection = {
+                CatalogEntry.COLUMN_NAME_DOWNLOAD_ID,
+                CatalogEntry.COLUMN_NAME_NAME,
+                CatalogEntry.COLUMN_NAME_TIMESTAMP,
+                CatalogEntry.COLUMN_NAME_TYPE,
+                CatalogEntry.COLUMN_NAME_VERSION,
+                CatalogEntry.COLUMN_NAME_SIZE,
+                CatalogEntry.COLUMN_NAME_URL,
+                CatalogEntry.COLUMN_NAME_CHUNK_MANIFEST_URL,
+        };
+        String sort = CatalogEntry.COLUMN_NAME_TIMESTAMP + " DESC";
+        List<UpdateInfo> updates = new ArrayList<>();
+        try (Cursor cursor = db.query(CatalogEntry.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, sort)) {
+            while (cursor.moveToNext()) {
+                Update update = new Update();
+                update.setDownloadId(cursor.getString(0));
+                update.setName(cursor.getString(1));
+                update.setTimestamp(cursor.getLong(2));
+                update.setType(cursor.getString(3));
+                update.setVersion(cursor.getString(4));
+                update.setFileSize(cursor.getLong(5));
+                update.setDownloadUrl(cursor.getString(6));
+                update.setChunkManifestUrl(cursor.getString(7));
+                updates.add(update);
+            }
+        }
+        return updates;
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.lineageos.updater.UpdatesDbHelper.UpdateEntry;
+import org.lineageos.updater.model.PackageMetadata;
+import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateSnapshot;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes the changes of the updates to the database from a single thread.
+ *
+ * Changes are queued and written in order. The ones queued while a batch is
+ * being written are written together in the next transaction, so that bursts
+ * of changes only cost a single commit. The values are taken when the change
+ * is queued.
+ */
+public class UpdatesDbWriter {
+
+    private static final String TAG = "UpdatesDbWriter";
+
+    // Indexed by the SQLiteDatabase.CONFLICT_* constants
+    private static final String[] CONFLICT_VALUES =
+            {"", " OR ROLLBACK", " OR ABORT", " OR FAIL", " OR IGNORE", " OR REPLACE"};
+
+    private static final String SQL_INSERT =
+            "INSERT%s INTO " + UpdateEntry.TABLE_NAME + " (" +
+                    UpdateEntry.COLUMN_NAME_STATUS + "," +
+                    UpdateEntry.COLUMN_NAME_PATH + "," +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + "," +
+                    UpdateEntry.COLUMN_NAME_TIMESTAMP + "," +
+                    UpdateEntry.COLUMN_NAME_TYPE + "," +
+                    UpdateEntry.COLUMN_NAME_VERSION + "," +
+                    UpdateEntry.COLUMN_NAME_SIZE + "," +
+                    UpdateEntry.COLUMN_NAME_AB_UPDATE + "," +
+                    UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET + "," +
+                    UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE + "," +
+                    UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES + "," +
+                    UpdateEntry.COLUMN_NAME_METADATA + "," +
+                    UpdateEntry.COLUMN_NAME_VERIFICATION_KEY + "," +
+                    UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST_URL +
+                    ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+    private static final String SQL_UPDATE_STATUS =
+            "UPDATE " + UpdateEntry.TABLE_NAME + " SET " +
+                    UpdateEntry.COLUMN_NAME_STATUS + " = ? WHERE " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+
+    private static final String SQL_UPDATE_PACKAGE_METADATA =
+            "UPDATE " + UpdateEntry.TABLE_NAME + " SET " +
+                    UpdateEntry.COLUMN_NAME_AB_UPDATE + " = ?," +
+                    UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET + " = ?," +
+                    UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE + " = ?," +
+                    UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES + " = ?," +
+                    UpdateEntry.COLUMN_NAME_METADATA + " = ? WHERE " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+
+    private static final String SQL_UPDATE_VERIFICATION_KEY =
+            "UPDATE " + UpdateEntry.TABLE_NAME + " SET " +
+                    UpdateEntry.COLUMN_NAME_VERIFICATION_KEY + " = ? WHERE " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+
+    private static final String SQL_DELETE =
+            "DELETE FROM " + UpdateEntry.TABLE_NAME + " WHERE " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+
+    private interface Mutation {
+        void apply(SQLiteDatabase db);
+    }
+
+    private final UpdatesDbHelper mDbHelper;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Queue<Mutation> mPending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    // Compiled once and only used on the database thread
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+
+    public UpdatesDbWriter(UpdatesDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    public void addUpdateWithOnConflict(UpdateInfo update, int conflictAlgorithm) {
+        UpdateSnapshot snapshot = UpdateSnapshot.of(update);
+        String sql = String.format(SQL_INSERT, CONFLICT_VALUES[conflictAlgorithm]);
+        enqueue(db -> {
+            SQLiteStatement statement = getStatement(db, sql);
+            statement.bindLong(1, snapshot.getPersistentStatus());
+            statement.bindString(2, snapshot.getFile().getAbsolutePath());
+            statement.bindString(3, snapshot.getDownloadId());
+            statement.bindLong(4, snapshot.getTimestamp());
+            bindString(statement, 5, snapshot.getType());
+            bindString(statement, 6, snapshot.getVersion());
+            statement.bindLong(7, snapshot.getFileSize());
+            bindPackageMetadata(statement, 8, snapshot.getPackageMetadata());
+            bindString(statement, 13, snapshot.getVerificationKey());
+            bindString(statement, 14, snapshot.getChunkManifestUrl());
+            statement.executeInsert();
+        });
+    }
+
+    public void changeUpdateStatus(UpdateInfo update) {
+        String downloadId = update.getDownloadId();
+        int status = update.getPersistentStatus();
+        enqueue(db -> {
+            SQLiteStatement statement = getStatement(db, SQL_UPDATE_STATUS);
+            statement.bindLong(1, status);
+            statement.bindString(2, downloadId);
+            statement.executeUpdateDelete();
+        });
+    }
+
+    public void changeUpdatePackageMetadata(UpdateInfo update) {
+        String downloadId = update.getDownloadId();
+        PackageMetadata packageMetadata = update.getPackageMetadata();
+        enqueue(db -> {
+            SQLiteStatement statement = getStatement(db, SQL_UPDATE_PACKAGE_METADATA);
+            bindPackageMetadata(statement, 1, packageMetadata);
+            statement.bindString(6, downloadId);
+            statement.executeUpdateDelete();
+        });
+    }
+
+    public void changeUpdateVerificationKey(UpdateInfo update) {
+        String downloadId = update.getDownloadId();
+        String verificationKey = update.getVerificationKey();
+        enqueue(db -> {
+            SQLiteStatement statement = getStatement(db, SQL_UPDATE_VERIFICATION_KEY);
+            bindString(statement, 1, verificationKey);
+            statement.bindString(2, downloadId);
+            statement.executeUpdateDelete();
+        });
+    }
+
+    public void removeUpdate(String downloadId) {
+        enqueue(db -> {
+            SQLiteStatement statement = getStatement(db, SQL_DELETE);
+            statement.bindString(1, downloadId);
+            statement.executeUpdateDelete();
+        });
+    }
+
+    private void enqueue(Mutation mutation) {
+        mPending.add(mutation);
+        if (mScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(this::writePending);
+        }
+    }
+
+    private void writePending() {
+        // Changes queued from now on schedule another batch
+        mScheduled.set(false);
+        Mutation mutation = mPending.poll();
+        if (mutation == null) {
+            return;
+        }
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            do {
+                try {
+                    mutation.apply(db);
+                } catch (SQLException e) {
+                    // Only this statement is rolled back, keep the rest of the batch
+                    Log.e(TAG, "Could not write the update", e);
+                }
+            } while ((mutation = mPending.poll()) != null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        statement.clearBindings();
+        return statement;
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Bind the five package metadata columns, starting from the given index
+     */
+    private static void bindPackageMetadata(SQLiteStatement statement, int index,
+            PackageMetadata packageMetadata) {
+        if (packageMetadata == null) {
+            for (int i = 0; i < 5; i++) {
+                statement.bindNull(index + i);
+            }
+            return;
+        }
+        statement.bindLong(index, packageMetadata.isABUpdate() ? 1 : 0);
+        statement.bindLong(index + 1, packageMetadata.getPayloadOffset());
+        statement.bindLong(index + 2, packageMetadata.getPayloadSize());
+        bindString(statement, index + 3, packageMetadata.getPayloadPropertiesString());
+        bindString(statement, index + 4, packageMetadata.getMetadataString());
+    }
+}
@@ -49,16 +49,19 @@ import androidx.appcompat.view.menu.MenuBuilder;
 import androidx.appcompat.view.menu.MenuPopupHelper;
 import androidx.appcompat.widget.PopupMenu;
 import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import org.lineageos.updater.controller.UpdateEvent;
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
 import org.lineageos.updater.misc.BuildInfoUtils;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.StringGenerator;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.PackageMetadata;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
 
@@ -68,7 +71,10 @@ import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Stream;
 
 public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.ViewHolder> {
@@ -82,6 +88,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
     private final float mAlphaDisabledValue;
 
     private List<String> mDownloadIds;
+    // Index of each item in mDownloadIds
+    private final Map<String, Integer> mPositions = new HashMap<>();
+    // Never reused, so that an id always refers to the same update
+    private final Map<String, Long> mItemIds = new HashMap<>();
+    // Formatted build dates by timestamp. The activity, and with it the adapter,
+    // is recreated when the locale changes.
+    private final Map<Long, String> mBuildDates = new HashMap<>();
     private String mSelectedDownload;
     private UpdaterController mUpdaterController;
     private final UpdatesListActivity mActivity;
@@ -134,6 +147,8 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         TypedValue tv = new TypedValue();
         mActivity.getTheme().resolveAttribute(android.R.attr.disabledAlpha, tv, true);
         mAlphaDisabledValue = tv.getFloat();
+
+        setHasStableIds(true);
     }
 
     @NonNull
@@ -159,59 +174,20 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
     }
 
     private void handleActiveStatus(ViewHolder viewHolder, UpdateInfo update) {
-        boolean canDelete = false;
+        boolean canDelete = true;
 
         final String downloadId = update.getDownloadId();
         if (mUpdaterController.isDownloading(downloadId)) {
-            canDelete = true;
-            String downloaded = Formatter.formatShortFileSize(mActivity,
-                    update.getFile().length());
-            String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
-            String percentage = NumberFormat.getPercentInstance().format(
-                    update.getProgress() / 100.f);
-            viewHolder.mPercentage.setText(percentage);
-            long eta = update.getEta();
-            if (eta > 0) {
-                CharSequence etaString = StringGenerator.formatETA(mActivity, eta * 1000);
-                viewHolder.mProgressText.setText(mActivity.getString(
-                        R.string.list_download_progress_eta_newer, downloaded, total, etaString));
-            } else {
-                viewHolder.mProgressText.setText(mActivity.getString(
-                        R.string.list_download_progress_newer, downloaded, total));
-            }
             setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
-            viewHolder.mProgressBar.setIndeterminate(update.getStatus() == UpdateStatus.STARTING);
-            viewHolder.mProgressBar.setProgress(update.getProgress());
         } else if (mUpdaterController.isInstallingUpdate(downloadId)) {
+            canDelete = false;
             setButtonAction(viewHolder.mAction, Action.CANCEL_INSTALLATION, downloadId, true);
-            boolean notAB = !mUpdaterController.isInstallingABUpdate();
-            viewHolder.mProgressText.setText(notAB ? R.string.dialog_prepare_zip_message :
-                    update.getFinalizing() ?
-                            R.string.finalizing_package :
-                            R.string.preparing_ota_first_boot);
-            String percentage = NumberFormat.getPercentInstance().format(
-                    update.getInstallProgress() / 100.f);
-            viewHolder.mPercentage.setText(percentage);
-            viewHolder.mProgressBar.setIndeterminate(false);
-            viewHolder.mProgressBar.setProgress(update.getInstallProgress());
         } else if (mUpdaterController.isVerifyingUpdate(downloadId)) {
-            setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, false);
-            viewHolder.mProgressText.setText(R.string.list_verifying_update);
-            viewHolder.mProgressBar.setIndeterminate(true);
+            setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
         } else {
-            canDelete = true;
             setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
-            String downloaded = Formatter.formatShortFileSize(mActivity,
-                    update.getFile().length());
-            String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
-            String percentage = NumberFormat.getPercentInstance().format(
-                    update.getProgress() / 100.f);
-            viewHolder.mPercentage.setText(percentage);
-            viewHolder.mProgressText.setText(mActivity.getString(
-                    R.string.list_download_progress_newer, downloaded, total));
-            viewHolder.mProgressBar.setIndeterminate(false);
-            viewHolder.mProgressBar.setProgress(update.getProgress());
         }
+        bindProgress(viewHolder, update);
 
         viewHolder.mMenu.setOnClickListener(getClickListener(update, canDelete, viewHolder.mMenu));
         viewHolder.mProgress.setVisibility(View.VISIBLE);
@@ -219,6 +195,87 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         viewHolder.mBuildSize.setVisibility(View.INVISIBLE);
     }
 
+    /**
+     * Bind the views of an active update that change with its progress
+     */
+    private void bindProgress(ViewHolder viewHolder, UpdateInfo update) {
+        final String downloadId = update.getDownloadId();
+        if (mUpdaterController.isDownloading(downloadId)) {
+            bindDownloadProgress(viewHolder, update, update.getProgress(), -1, update.getEta(),
+                    update.getStatus() == UpdateStatus.STARTING);
+        } else if (mUpdaterController.isInstallingUpdate(downloadId)) {
+            bindInstallProgress(viewHolder, update, update.getInstallProgress());
+        } else if (mUpdaterController.isVerifyingUpdate(downloadId)) {
+            bindVerificationProgress(viewHolder, update.getVerificationProgress());
+        } else {
+            bindDownloadProgress(viewHolder, update, update.getProgress(), -1, 0, false);
+        }
+    }
+
+    /**
+     * Bind the progress carried by a progress event
+     */
+    private void bindProgress(ViewHolder viewHolder, UpdateEvent event) {
+        switch (event.getType()) {
+            case DOWNLOAD_PROGRESS:
+                bindDownloadProgress(viewHolder, event.getUpdate(), event.getProgress(),
+                        event.getDownloadedBytes(), event.getEta(),
+                        event.getStatus() == UpdateStatus.STARTING);
+                break;
+            case INSTALL_PROGRESS:
+                bindInstallProgress(viewHolder, event.getUpdate(), event.getProgress());
+                break;
+            case VERIFICATION_PROGRESS:
+                bindVerificationProgress(viewHolder, event.getProgress());
+                break;
+        }
+    }
+
+    /**
+     * @param downloadedBytes the bytes downloaded, or -1 to estimate them from
+     *                        the progress
+     */
+    private void bindDownloadProgress(ViewHolder viewHolder, UpdateInfo update, int progress,
+            long downloadedBytes, long eta, boolean indeterminate) {
+        if (downloadedBytes < 0) {
+            downloadedBytes = update.getFileSize() * progress / 100;
+        }
+        String downloaded = Formatter.formatShortFileSize(mActivity, downloadedBytes);
+        String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
+        if (eta > 0) {
+            CharSequence etaString = StringGenerator.formatETA(mActivity, eta * 1000);
+            viewHolder.mProgressText.setText(mActivity.getString(
+                    R.string.list_download_progress_eta_newer, downloaded, total, etaString));
+        } else {
+            viewHolder.mProgressText.setText(mActivity.getString(
+                    R.string.list_download_progress_newer, downloaded, total));
+        }
+        viewHolder.mProgressBar.setIndeterminate(indeterminate);
+        bindPercentage(viewHolder, progress);
+    }
+
+    private void bindInstallProgress(ViewHolder viewHolder, UpdateInfo update, int progress) {
+        boolean notAB = !mUpdaterController.isInstallingABUpdate();
+        viewHolder.mProgressText.setText(notAB ? R.string.dialog_prepare_zip_message :
+                update.getFinalizing() ?
+                        R.string.finalizing_package :
+                        R.string.preparing_ota_first_boot);
+        viewHolder.mProgressBar.setIndeterminate(false);
+        bindPercentage(viewHolder, progress);
+    }
+
+    private void bindVerificationProgress(ViewHolder viewHolder, int progress) {
+        viewHolder.mProgressText.setText(R.string.list_verifying_update);
+        viewHolder.mProgressBar.setIndeterminate(progress == 0);
+        bindPercentage(viewHolder, progress);
+    }
+
+    private void bindPercentage(ViewHolder viewHolder, int progress) {
+        String percentage = NumberFormat.getPercentInstance().format(progress / 100.f);
+        viewHolder.mPercentage.setText(percentage);
+        viewHolder.mProgressBar.setProgress(progress);
+    }
+
     private void handleNotActiveStatus(ViewHolder viewHolder, UpdateInfo update) {
         final String downloadId = update.getDownloadId();
         if (mUpdaterController.isWaitingForReboot(downloadId)) {
@@ -244,15 +301,42 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         viewHolder.mBuildSize.setVisibility(View.VISIBLE);
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder viewHolder, int i,
+            @NonNull List<Object> payloads) {
+        if (payloads.isEmpty() || mDownloadIds == null) {
+            onBindViewHolder(viewHolder, i);
+            return;
+        }
+        // The events are in the order they were posted, the last one is the newest
+        UpdateEvent lastEvent = null;
+        boolean progressOnly = viewHolder.mProgress.getVisibility() == View.VISIBLE;
+        for (Object payload : payloads) {
+            if (!(payload instanceof UpdateEvent)) {
+                onBindViewHolder(viewHolder, i);
+                return;
+            }
+            lastEvent = (UpdateEvent) payload;
+            progressOnly &= lastEvent.getType() != UpdateEvent.Type.STATUS_CHANGED;
+        }
+        if (progressOnly) {
+            // Only the progress changed, the rest of the row is still up to date
+            bindProgress(viewHolder, lastEvent);
+        } else {
+            bindUpdate(viewHolder, lastEvent.getUpdate());
+        }
+    }
+
     @Override
     public void onBindViewHolder(@NonNull final ViewHolder viewHolder, int i) {
         if (mDownloadIds == null) {
             viewHolder.mAction.setEnabled(false);
             return;
         }
+        bindUpdate(viewHolder, mUpdaterController.getUpdate(mDownloadIds.get(i)));
+    }
 
-        final String downloadId = mDownloadIds.get(i);
-        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+    private void bindUpdate(ViewHolder viewHolder, UpdateInfo update) {
         if (update == null) {
             // The update was deleted
             viewHolder.mAction.setEnabled(false);
@@ -260,6 +344,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             return;
         }
 
+        final String downloadId = update.getDownloadId();
         viewHolder.itemView.setSelected(downloadId.equals(mSelectedDownload));
 
         boolean activeLayout;
@@ -277,8 +362,14 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 throw new RuntimeException("Unknown update status");
         }
 
-        String buildDate = StringGenerator.getDateLocalizedUTC(mActivity,
-                DateFormat.LONG, update.getTimestamp());
+        String buildDate = getBuildDate(update.getTimestamp());
+        PackageMetadata packageMetadata = update.getPackageMetadata();
+        String securityPatch = packageMetadata != null ?
+                packageMetadata.getMetadata(PackageMetadata.KEY_POST_SECURITY_PATCH_LEVEL) : null;
+        if (securityPatch != null) {
+            buildDate = mActivity.getString(R.string.list_build_date_security_patch, buildDate,
+                    securityPatch);
+        }
         String buildVersion = mActivity.getString(R.string.list_build_version,
                 BuildInfoUtils.getBrand(),
                 update.getVersion());
@@ -293,38 +384,141 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         }
     }
 
+    private String getBuildDate(long timestamp) {
+        String buildDate = mBuildDates.get(timestamp);
+        if (buildDate == null) {
+            buildDate = StringGenerator.getDateLocalizedUTC(mActivity, DateFormat.LONG, timestamp);
+            mBuildDates.put(timestamp, buildDate);
+        }
+        return buildDate;
+    }
+
     @Override
     public int getItemCount() {
         return mDownloadIds == null ? 0 : mDownloadIds.size();
     }
 
-    public void setData(List<String> downloadIds) {
-        mDownloadIds = downloadIds;
+    @Override
+    public long getItemId(int position) {
+        return getItemId(mDownloadIds.get(position));
+    }
+
+    private long getItemId(String downloadId) {
+        Long itemId = mItemIds.get(downloadId);
+        if (itemId == null) {
+            itemId = (long) mItemIds.size();
+            mItemIds.put(downloadId, itemId);
+        }
+        return itemId;
+    }
+
+    /**
+     * Replace the items and notify only the changes described by the diff
+     *
+     * @param downloadIds the new items
+     * @param previousIds the items the diff was calculated from
+     * @param diff the changes from previousIds to downloadIds, see
+     *             {@link #calculateDiff(List, List)}
+     */
+    public void setData(List<String> downloadIds, List<String> previousIds,
+            DiffUtil.DiffResult diff) {
+        boolean unchanged = mDownloadIds == null ?
+                previousIds.isEmpty() : mDownloadIds.equals(previousIds);
+        mDownloadIds = new ArrayList<>(downloadIds);
+        mPositions.clear();
+        updatePositions(0);
+        if (unchanged) {
+            diff.dispatchUpdatesTo(this);
+        } else {
+            // The items changed since the diff was calculated, it no longer applies.
+            // Stable ids still let the unchanged rows keep their views.
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Calculate the changes between two lists of updates. Rows are only
+     * rebound if what they show, other than the progress, changed.
+     */
+    public static DiffUtil.DiffResult calculateDiff(List<UpdateInfo> oldUpdates,
+            List<UpdateInfo> newUpdates) {
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldUpdates.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newUpdates.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldUpdates.get(oldItemPosition).getDownloadId().equals(
+                        newUpdates.get(newItemPosition).getDownloadId());
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                // Progress changes are notified by the controller
+                UpdateInfo oldUpdate = oldUpdates.get(oldItemPosition);
+                UpdateInfo newUpdate = newUpdates.get(newItemPosition);
+                return oldUpdate.getStatus() == newUpdate.getStatus() &&
+                        oldUpdate.getPersistentStatus() == newUpdate.getPersistentStatus() &&
+                        oldUpdate.getAvailableOnline() == newUpdate.getAvailableOnline() &&
+                        oldUpdate.getTimestamp() == newUpdate.getTimestamp() &&
+                        Objects.equals(oldUpdate.getVersion(), newUpdate.getVersion()) &&
+                        Objects.equals(oldUpdate.getName(), newUpdate.getName());
+            }
+        });
     }
 
     public void addItem(String downloadId) {
         if (mDownloadIds == null) {
             mDownloadIds = new ArrayList<>();
         }
+        if (mPositions.containsKey(downloadId)) {
+            notifyItemChanged(downloadId);
+            return;
+        }
         mDownloadIds.add(0, downloadId);
+        updatePositions(0);
         notifyItemInserted(0);
     }
 
     public void notifyItemChanged(String downloadId) {
-        if (mDownloadIds == null) {
-            return;
+        Integer position = mPositions.get(downloadId);
+        if (position != null) {
+            notifyItemChanged(position);
+        }
+    }
+
+    /**
+     * Like {@link #notifyItemChanged(String)}, but binds the row from the
+     * update carried by the event. Progress events only rebind the progress.
+     */
+    public void notifyItemChanged(UpdateEvent event) {
+        Integer position = mPositions.get(event.getDownloadId());
+        if (position != null) {
+            notifyItemChanged(position, event);
         }
-        notifyItemChanged(mDownloadIds.indexOf(downloadId));
     }
 
     public void removeItem(String downloadId) {
-        if (mDownloadIds == null) {
+        Integer position = mPositions.remove(downloadId);
+        if (position == null) {
             return;
         }
-        int position = mDownloadIds.indexOf(downloadId);
-        mDownloadIds.remove(downloadId);
+        mDownloadIds.remove((int) position);
+        updatePositions(position);
         notifyItemRemoved(position);
-        notifyItemRangeChanged(position, getItemCount());
+    }
+
+    private void updatePositions(int start) {
+        for (int i = start; i < mDownloadIds.size(); i++) {
+            mPositions.put(mDownloadIds.get(i), i);
+        }
     }
 
     private void startDownloadWithWarning(final String downloadId) {
@@ -488,7 +682,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         int resId;
         try {
-            if (Utils.isABUpdate(update.getFile())) {
+            if (Utils.isABUpdate(update)) {
                 resId = R.string.apply_update_dialog_message_ab;
             } else {
                 resId = R.string.apply_update_dialog_message;
@@ -26,19 +26,15 @@ import android.util.Log;
 import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.PayloadParser;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.PackageMetadata;
+import org.lineageos.updater.model.PayloadInfo;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateStatus;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 class ABUpdateInstaller {
 
@@ -175,21 +171,29 @@ class ABUpdateInstaller {
         long offset;
         String[] headerKeyValuePairs;
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
-                }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
+            Update update = mUpdaterController.getActualUpdate(downloadId);
+            PackageMetadata packageMetadata = update.getPackageMetadata();
+            if (packageMetadata == null || !packageMetadata.isComplete()) {
+                packageMetadata = Utils.readPackageMetadata(file);
+            }
+            if (!packageMetadata.isABUpdate()) {
+                throw new IOException("Not an A/B update");
+            }
+            offset = packageMetadata.getPayloadOffset();
+            headerKeyValuePairs = packageMetadata.getPayloadProperties();
+
+            PayloadInfo payloadInfo = update.getPayloadInfo();
+            if (payloadInfo == null) {
+                payloadInfo = PayloadParser.parse(file, offset);
+                update.setPayloadInfo(payloadInfo);
+            }
+            Log.d(TAG, (payloadInfo.isIncremental() ? "Incremental" : "Full") +
+                    " payload for " + payloadInfo.getPartitions() + ", " +
+                    payloadInfo.getTotalWriteSize() + " bytes to write");
+            if (!Utils.isPackageCompatible(packageMetadata, payloadInfo)) {
+                throw new IOException("The payload can't be applied to this build");
             }
-            zipFile.close();
-        } catch (IOException | IllegalArgumentException e) {
+        } catch (IOException e) {
             Log.e(TAG, "Could not prepare " + file, e);
             mUpdaterController.getActualUpdate(mDownloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.model.Update;
+
+/**
+ * The progress of a single download. The download thread only stores the
+ * counters, the speed, eta and percentage are computed when sampled.
+ */
+class DownloadProgress implements DownloadClient.ProgressListener {
+
+    private volatile long mBytesRead;
+    private volatile long mContentLength;
+
+    // Only accessed by the sampler
+    private long mLastBytesRead = -1;
+    private long mLastSample;
+    private long mLastReport;
+    private long mReportedBytes = -1;
+    private long mSpeed = -1;
+    private int mProgress = -1;
+
+    @Override
+    public void update(long bytesRead, long contentLength) {
+        mContentLength = contentLength;
+        mBytesRead = bytesRead;
+    }
+
+    /**
+     * Update the progress, speed and eta of the update
+     *
+     * @param update the update being downloaded
+     * @param now the current time, in milliseconds
+     * @param maxReportInterval the time after which the update is reported
+     *                          even if the progress didn't change
+     * @return whether the update changed and should be reported
+     */
+    boolean sample(Update update, long now, long maxReportInterval) {
+        long bytesRead = mBytesRead;
+        long contentLength = mContentLength;
+        if (contentLength <= 0) {
+            contentLength = update.getFileSize();
+        }
+        if (contentLength <= 0 || bytesRead <= 0) {
+            return false;
+        }
+
+        if (mLastBytesRead < 0) {
+            // Don't count what was downloaded before resuming
+            mLastBytesRead = bytesRead;
+            mLastSample = now;
+        } else if (now > mLastSample) {
+            long speed = (bytesRead - mLastBytesRead) * 1000 / (now - mLastSample);
+            mSpeed = mSpeed < 0 ? speed : (mSpeed * 3 + speed) / 4;
+            mLastBytesRead = bytesRead;
+            mLastSample = now;
+        }
+
+        int progress = (int) (bytesRead * 100 / contentLength);
+        if (progress == mProgress && now - mLastReport < maxReportInterval) {
+            return false;
+        }
+        mProgress = progress;
+        mLastReport = now;
+        mReportedBytes = bytesRead;
+        update.setDownloadProgress(progress,
+                mSpeed > 0 ? (contentLength - bytesRead) / mSpeed : -1, mSpeed);
+        return true;
+    }
+
+    /**
+     * @return the bytes downloaded when the progress was last reported, or -1
+     */
+    long getReportedBytes() {
+        return mReportedBytes;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import org.lineageos.updater.model.UpdateSnapshot;
+import org.lineageos.updater.model.UpdateStatus;
+
+/**
+ * A change of an update, as seen when the change happened.
+ */
+public final class UpdateEvent {
+
+    public enum Type {
+        STATUS_CHANGED,
+        DOWNLOAD_PROGRESS,
+        VERIFICATION_PROGRESS,
+        INSTALL_PROGRESS,
+        REMOVED,
+    }
+
+    private final Type mType;
+    private final UpdateSnapshot mUpdate;
+    private final UpdateStatus mStatus;
+    private final int mProgress;
+    private final long mEta;
+    private final long mSpeed;
+    private final long mDownloadedBytes;
+
+    private UpdateEvent(Type type, UpdateSnapshot update, int progress, long eta, long speed,
+            long downloadedBytes) {
+        mType = type;
+        mUpdate = update;
+        mStatus = update.getStatus();
+        mProgress = progress;
+        mEta = eta;
+        mSpeed = speed;
+        mDownloadedBytes = downloadedBytes;
+    }
+
+    static UpdateEvent of(Type type, UpdateSnapshot update) {
+        int progress;
+        switch (type) {
+            case VERIFICATION_PROGRESS:
+                progress = update.getVerificationProgress();
+                break;
+            case INSTALL_PROGRESS:
+                progress = update.getInstallProgress();
+                break;
+            default:
+                progress = update.getProgress();
+                break;
+        }
+        return new UpdateEvent(type, update, progress, update.getEta(), update.getSpeed(), -1);
+    }
+
+    /**
+     * @param downloadedBytes the bytes downloaded when the progress was sampled
+     */
+    static UpdateEvent downloadProgress(UpdateSnapshot update, long downloadedBytes) {
+        return new UpdateEvent(Type.DOWNLOAD_PROGRESS, update, update.getProgress(),
+                update.getEta(), update.getSpeed(), downloadedBytes);
+    }
+
+    /**
+     * @param update the last state of the removed update
+     */
+    static UpdateEvent removed(UpdateSnapshot update) {
+        return new UpdateEvent(Type.REMOVED, update, 0, 0, 0, -1);
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public String getDownloadId() {
+        return mUpdate.getDownloadId();
+    }
+
+    /**
+     * @return the update as it was when the event was posted, or right before
+     * it was removed
+     */
+    public UpdateSnapshot getUpdate() {
+        return mUpdate;
+    }
+
+    /**
+     * @return the status of the update, the last one for REMOVED events
+     */
+    public UpdateStatus getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return the progress of the download, verification or installation,
+     * depending on the type of the event
+     */
+    public int getProgress() {
+        return mProgress;
+    }
+
+    public long getEta() {
+        return mEta;
+    }
+
+    public long getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * @return the bytes downloaded so far for DOWNLOAD_PROGRESS events, -1 otherwise
+     */
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    /**
+     * Whether a newer event can replace this one if it wasn't delivered yet
+     */
+    boolean isReplaceable() {
+        return mType != Type.REMOVED;
+    }
+}
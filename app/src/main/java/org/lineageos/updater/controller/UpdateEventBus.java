@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers update events to listeners, each on its own executor.
+ *
+ * Events that weren't delivered yet are replaced by newer events of the same
+ * type for the same update, so a slow listener only gets the latest progress
+ * instead of a growing backlog. Removals are never dropped, and events are
+ * delivered in the order of their last change.
+ */
+class UpdateEventBus {
+
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    void addListener(UpdaterController.UpdateListener listener, Executor executor) {
+        mSubscriptions.add(new Subscription(listener, executor));
+    }
+
+    void removeListener(UpdaterController.UpdateListener listener) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mListener == listener) {
+                subscription.mRemoved = true;
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    void post(UpdateEvent event) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.enqueue(event);
+        }
+    }
+
+    private static class Subscription implements Runnable {
+        private final UpdaterController.UpdateListener mListener;
+        private final Executor mExecutor;
+        private final Map<Object, UpdateEvent> mPending = new LinkedHashMap<>();
+        private boolean mScheduled;
+        private volatile boolean mRemoved;
+        private long mSequence;
+
+        private Subscription(UpdaterController.UpdateListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        private void enqueue(UpdateEvent event) {
+            synchronized (mPending) {
+                if (event.isReplaceable()) {
+                    String key = event.getType() + ":" + event.getDownloadId();
+                    // Move it to the end to keep the order of the changes
+                    mPending.remove(key);
+                    mPending.put(key, event);
+                } else {
+                    // The update is gone, there's no point in delivering its older changes
+                    Iterator<UpdateEvent> iterator = mPending.values().iterator();
+                    while (iterator.hasNext()) {
+                        if (iterator.next().getDownloadId().equals(event.getDownloadId())) {
+                            iterator.remove();
+                        }
+                    }
+                    mPending.put(mSequence++, event);
+                }
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            List<UpdateEvent> events;
+            synchronized (mPending) {
+                events = new ArrayList<>(mPending.values());
+                mPending.clear();
+                mScheduled = false;
+            }
+            for (UpdateEvent event : events) {
+                if (mRemoved) {
+                    return;
+                }
+                mListener.onUpdateEvent(event);
+            }
+        }
+    }
+}
@@ -17,8 +17,9 @@ package org.lineageos.updater.controller;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.SystemClock;
 import android.os.SystemProperties;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
@@ -26,6 +27,7 @@ import androidx.preference.PreferenceManager;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.FileUtils;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
 
@@ -82,15 +84,23 @@ class UpdateInstaller {
         long lastBuildTimestamp = preferences.getLong(Constants.PREF_INSTALL_OLD_TIMESTAMP,
                 buildTimestamp);
         boolean isReinstalling = buildTimestamp == lastBuildTimestamp;
+        boolean isEncrypted = Utils.isEncrypted(mContext, update.getFile());
+        boolean uncryptInPlace = isEncrypted &&
+                canUncryptInPlace(preferences, downloadId, update.getFile());
         preferences.edit()
                 .putLong(Constants.PREF_INSTALL_OLD_TIMESTAMP, buildTimestamp)
                 .putLong(Constants.PREF_INSTALL_NEW_TIMESTAMP, update.getTimestamp())
                 .putString(Constants.PREF_INSTALL_PACKAGE_PATH, update.getFile().getAbsolutePath())
                 .putBoolean(Constants.PREF_INSTALL_AGAIN, isReinstalling)
                 .putBoolean(Constants.PREF_INSTALL_NOTIFIED, false)
+                .remove(Constants.PREF_INSTALL_UNCRYPT_BOOT_COUNT)
                 .apply();
 
-        if (Utils.isEncrypted(mContext, update.getFile())) {
+        if (uncryptInPlace) {
+            // The package won't be kept, let uncrypt rewrite it rather than a copy.
+            // It's deleted after the reboot even if the installation failed.
+            uncryptInPlaceAndInstall(update);
+        } else if (isEncrypted) {
             // uncrypt rewrites the file so that it can be read without mounting
             // the filesystem, so create a copy of it.
             prepareForUncryptAndInstall(update);
@@ -99,11 +109,75 @@ class UpdateInstaller {
         }
     }
 
+    /**
+     * Whether the package can be given to uncrypt directly. This is the case
+     * when it's deleted once installed anyway, since uncrypt leaves it unreadable.
+     */
+    private static boolean canUncryptInPlace(SharedPreferences preferences, String downloadId,
+            File file) {
+        if (!Update.LOCAL_ID.equals(downloadId) &&
+                !preferences.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false)) {
+            return false;
+        }
+        try {
+            // Imported packages can be links to the picked file, which must be left intact
+            return Os.stat(file.getAbsolutePath()).st_nlink == 1;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static void setUncryptPermissions(File file) throws IOException {
+        Set<PosixFilePermission> perms = new HashSet<>();
+        perms.add(PosixFilePermission.OWNER_READ);
+        perms.add(PosixFilePermission.OWNER_WRITE);
+        perms.add(PosixFilePermission.OTHERS_READ);
+        perms.add(PosixFilePermission.GROUP_READ);
+        Files.setPosixFilePermissions(file.toPath(), perms);
+    }
+
+    private synchronized void uncryptInPlaceAndInstall(UpdateInfo update) {
+        final String downloadId = update.getDownloadId();
+        final File file = update.getFile();
+        sInstallingUpdate = downloadId;
+        Thread thread = new Thread(() -> {
+            try {
+                setUncryptPermissions(file);
+            } catch (IOException e) {
+                // uncrypt couldn't read the only copy of the package
+                Log.e(TAG, "Could not make " + file + " readable by uncrypt, copying it", e);
+                synchronized (UpdateInstaller.this) {
+                    sInstallingUpdate = null;
+                    prepareForUncryptAndInstall(update);
+                }
+                return;
+            }
+            Log.d(TAG, "Installing " + downloadId + " without copying it");
+            // The device reboots as soon as the package is installed, don't write it later
+            PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                    .putInt(Constants.PREF_INSTALL_UNCRYPT_BOOT_COUNT,
+                            Utils.getBootCount(mContext))
+                    .commit();
+            try {
+                installPackage(file, downloadId);
+            } finally {
+                synchronized (UpdateInstaller.this) {
+                    sInstallingUpdate = null;
+                }
+            }
+        });
+        thread.start();
+    }
+
     private void installPackage(File update, String downloadId) {
         try {
             android.os.RecoverySystem.installPackage(mContext, update);
         } catch (IOException e) {
             Log.e(TAG, "Could not install update", e);
+            // Nothing was rewritten, keep the package
+            PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                    .remove(Constants.PREF_INSTALL_UNCRYPT_BOOT_COUNT)
+                    .apply();
             mUpdaterController.getActualUpdate(downloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(downloadId);
@@ -115,19 +189,11 @@ class UpdateInstaller {
         File uncryptFile = new File(uncryptFilePath);
 
         Runnable copyUpdateRunnable = new Runnable() {
-            private long mLastUpdate = -1;
-
-            final FileUtils.ProgressCallBack mProgressCallBack = new FileUtils.ProgressCallBack() {
-                @Override
-                public void update(int progress) {
-                    long now = SystemClock.elapsedRealtime();
-                    if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(progress);
-                        mUpdaterController.notifyInstallProgress(update.getDownloadId());
-                        mLastUpdate = now;
-                    }
-                }
+            // Already rate limited by the copy
+            final FileUtils.ProgressCallBack mProgressCallBack = progress -> {
+                mUpdaterController.getActualUpdate(update.getDownloadId())
+                        .setInstallProgress(progress);
+                mUpdaterController.notifyInstallProgress(update.getDownloadId());
             };
 
             @Override
@@ -135,27 +201,20 @@ class UpdateInstaller {
                 try {
                     mCanCancel = true;
                     FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
-                    try {
-                        Set<PosixFilePermission> perms = new HashSet<>();
-                        perms.add(PosixFilePermission.OWNER_READ);
-                        perms.add(PosixFilePermission.OWNER_WRITE);
-                        perms.add(PosixFilePermission.OTHERS_READ);
-                        perms.add(PosixFilePermission.GROUP_READ);
-                        Files.setPosixFilePermissions(uncryptFile.toPath(), perms);
-                    } catch (IOException exception) {}
+                    setUncryptPermissions(uncryptFile);
 
                     mCanCancel = false;
                     if (mPrepareUpdateThread.isInterrupted()) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(0);
-                        //noinspection ResultOfMethodCallIgnored
-                        uncryptFile.delete();
+                        onCopyCancelled();
                     } else {
                         installPackage(uncryptFile, update.getDownloadId());
                     }
                 } catch (IOException e) {
+                    if (mPrepareUpdateThread.isInterrupted()) {
+                        // The copy stops as soon as it's interrupted
+                        onCopyCancelled();
+                        return;
+                    }
                     Log.e(TAG, "Could not copy update", e);
                     //noinspection ResultOfMethodCallIgnored
                     uncryptFile.delete();
@@ -170,6 +229,15 @@ class UpdateInstaller {
                     mUpdaterController.notifyUpdateChange(update.getDownloadId());
                 }
             }
+
+            private void onCopyCancelled() {
+                mUpdaterController.getActualUpdate(update.getDownloadId())
+                        .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+                mUpdaterController.getActualUpdate(update.getDownloadId())
+                        .setInstallProgress(0);
+                //noinspection ResultOfMethodCallIgnored
+                uncryptFile.delete();
+            }
         };
 
         mPrepareUpdateThread = new Thread(copyUpdateRunnable);
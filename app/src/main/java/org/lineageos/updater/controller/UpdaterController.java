@@ -17,17 +17,25 @@ package org.lineageos.updater.controller;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.PowerManager;
+import android.os.RecoverySystem;
 import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.UpdatesDbHelper;
+import org.lineageos.updater.UpdatesDbWriter;
 import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.misc.ChunkVerifier;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.FileUtils;
+import org.lineageos.updater.misc.PayloadParser;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.misc.ZipArchiveReader;
+import org.lineageos.updater.model.PackageMetadata;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
@@ -35,37 +43,61 @@ import org.lineageos.updater.model.UpdateStatus;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class UpdaterController {
 
-    public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
-    public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
-    public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
-    public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
-    public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
-
     private final String TAG = "UpdaterController";
 
     private static UpdaterController sUpdaterController;
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
 
+    public static final long PROGRESS_INTERVAL_DEFAULT_MS = 1000;
+    public static final long PROGRESS_INTERVAL_FOREGROUND_MS = 250;
+    private static final int MAX_THROUGHPUT_SAMPLES = 10;
+
+    // Verifications are the only long tasks, more threads would only compete for the storage
+    private static final int EXECUTOR_THREADS = 2;
+    private static final long EXECUTOR_KEEP_ALIVE_S = 30;
+
     private final Context mContext;
-    private final LocalBroadcastManager mBroadcastManager;
     private final UpdatesDbHelper mUpdatesDbHelper;
+    private final UpdatesDbWriter mUpdatesDbWriter;
 
     private final PowerManager.WakeLock mWakeLock;
 
     private final File mDownloadRoot;
 
-    private int mActiveDownloads = 0;
-    private final Set<String> mVerifyingUpdates = new HashSet<>();
-
+    private final ThreadPoolExecutor mExecutor;
+    // Deletes files in order, without waiting for the verifications
+    private final ThreadPoolExecutor mIoExecutor;
+    // Publishes the progress of all the downloads, only while there are any
+    private final ScheduledThreadPoolExecutor mProgressSampler;
+    private ScheduledFuture<?> mProgressSamplerTask;
+    private long mProgressInterval = PROGRESS_INTERVAL_DEFAULT_MS;
+    private final UpdateEventBus mEventBus = new UpdateEventBus();
+    // Completed once the updates have been loaded from the database
+    private final CompletableFuture<Void> mReady = new CompletableFuture<>();
+
+    /**
+     * Get the controller, without waiting for the updates to be loaded. Use
+     * whenReady() or awaitReady() before looking up updates.
+     */
     public static synchronized UpdaterController getInstance(Context context) {
         if (sUpdaterController == null) {
             sUpdaterController = new UpdaterController(context);
@@ -74,64 +106,181 @@ public class UpdaterController {
     }
 
     private UpdaterController(Context context) {
-        mBroadcastManager = LocalBroadcastManager.getInstance(context);
-        mUpdatesDbHelper = new UpdatesDbHelper(context);
+        mUpdatesDbHelper = UpdatesDbHelper.getInstance(context);
+        mUpdatesDbWriter = new UpdatesDbWriter(mUpdatesDbHelper);
         mDownloadRoot = Utils.getDownloadPath(context);
         PowerManager powerManager = context.getSystemService(PowerManager.class);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater:wakelock");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
+        mExecutor = new ThreadPoolExecutor(EXECUTOR_THREADS, EXECUTOR_THREADS,
+                EXECUTOR_KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mIoExecutor = new ThreadPoolExecutor(1, 1,
+                EXECUTOR_KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        mIoExecutor.allowCoreThreadTimeOut(true);
+        mProgressSampler = new ScheduledThreadPoolExecutor(1);
+        mProgressSampler.setKeepAliveTime(EXECUTOR_KEEP_ALIVE_S, TimeUnit.SECONDS);
+        mProgressSampler.allowCoreThreadTimeOut(true);
+        mProgressSampler.setRemoveOnCancelPolicy(true);
+
+        // Keep the disk away from the thread creating the controller, usually the main one
+        mExecutor.execute(() -> {
+            try {
+                Utils.cleanupDownloadsDir(mContext);
+                for (Update update : mUpdatesDbHelper.getUpdates()) {
+                    addUpdate(update, false);
+                }
+            } finally {
+                mReady.complete(null);
+            }
+        });
+    }
+
+    public boolean isReady() {
+        return mReady.isDone();
+    }
 
-        Utils.cleanupDownloadsDir(context);
+    /**
+     * Run the given action on the executor once the updates have been loaded,
+     * right away if they already are. The action runs outside of the future,
+     * so what it throws reaches the executor like for any other task.
+     */
+    public void whenReady(Runnable action, Executor executor) {
+        mReady.thenRun(() -> executor.execute(action));
+    }
 
-        for (Update update : mUpdatesDbHelper.getUpdates()) {
-            addUpdate(update, false);
+    /**
+     * Wait for the updates to be loaded. Must not be called from the main thread.
+     */
+    public void awaitReady() {
+        mReady.join();
+    }
+
+    private enum Stage {
+        IDLE,
+        DOWNLOADING,
+        VERIFYING,
+    }
+
+    /**
+     * What is being done with an update, together with what's needed to stop it
+     */
+    private static final class State {
+        static final State IDLE = new State(Stage.IDLE, null, null, null);
+
+        final Stage mStage;
+        final DownloadClient mDownloadClient;
+        final DownloadProgress mDownloadProgress;
+        final VerificationTask mVerificationTask;
+
+        private State(Stage stage, DownloadClient downloadClient,
+                DownloadProgress downloadProgress, VerificationTask verificationTask) {
+            mStage = stage;
+            mDownloadClient = downloadClient;
+            mDownloadProgress = downloadProgress;
+            mVerificationTask = verificationTask;
+        }
+
+        static State downloading(DownloadClient downloadClient,
+                DownloadProgress downloadProgress) {
+            return new State(Stage.DOWNLOADING, downloadClient, downloadProgress, null);
+        }
+
+        static State verifying(VerificationTask verificationTask) {
+            return new State(Stage.VERIFYING, null, null, verificationTask);
         }
     }
 
+    /**
+     * The state of each entry only changes through compare-and-set, so that
+     * concurrent callers (UI, download and verification threads, update_engine
+     * callbacks) can't both start or stop the same work.
+     */
     private static class DownloadEntry {
         final Update mUpdate;
-        DownloadClient mDownloadClient;
+        private final AtomicReference<State> mState = new AtomicReference<>(State.IDLE);
+
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
+
+        Stage getStage() {
+            return mState.get().mStage;
+        }
+
+        /**
+         * @return the previous state, or null if the entry wasn't in the expected stage
+         */
+        State transition(Stage from, State to) {
+            for (;;) {
+                State current = mState.get();
+                if (current.mStage != from) {
+                    return null;
+                }
+                if (mState.compareAndSet(current, to)) {
+                    return current;
+                }
+            }
+        }
+
+        /**
+         * @return whether the given task was still the one verifying the update
+         */
+        boolean finishVerification(VerificationTask task) {
+            State current = mState.get();
+            return current.mVerificationTask == task && mState.compareAndSet(current, State.IDLE);
+        }
+    }
+
+    private final Map<String, DownloadEntry> mDownloads = new ConcurrentHashMap<>();
+
+    public interface UpdateListener {
+        void onUpdateEvent(UpdateEvent event);
     }
 
-    private final Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    /**
+     * Receive the changes of the updates on the given executor. Changes that
+     * weren't delivered yet are replaced by newer ones, so slow listeners only
+     * see the latest progress of each update.
+     */
+    public void addUpdateListener(UpdateListener listener, Executor executor) {
+        mEventBus.addListener(listener, executor);
+    }
+
+    public void removeUpdateListener(UpdateListener listener) {
+        mEventBus.removeListener(listener);
+    }
+
+    private void postEvent(UpdateEvent.Type type, String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null) {
+            mEventBus.post(UpdateEvent.of(type, entry.mUpdate.getSnapshot()));
+        }
+    }
 
     void notifyUpdateChange(String downloadId) {
-        new Thread(() -> {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            Intent intent = new Intent();
-            intent.setAction(ACTION_UPDATE_STATUS);
-            intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-            mBroadcastManager.sendBroadcast(intent);
-        }).start();
+        postEvent(UpdateEvent.Type.STATUS_CHANGED, downloadId);
     }
 
-    void notifyUpdateDelete(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_UPDATE_REMOVED);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+    void notifyUpdateDelete(Update update) {
+        mEventBus.post(UpdateEvent.removed(update.getSnapshot()));
     }
 
-    void notifyDownloadProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+    void notifyDownloadProgress(String downloadId, long downloadedBytes) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null) {
+            mEventBus.post(UpdateEvent.downloadProgress(entry.mUpdate.getSnapshot(),
+                    downloadedBytes));
+        }
+    }
+
+    void notifyVerificationProgress(String downloadId) {
+        postEvent(UpdateEvent.Type.VERIFICATION_PROGRESS, downloadId);
     }
 
     void notifyInstallProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_INSTALL_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        postEvent(UpdateEvent.Type.INSTALL_PROGRESS, downloadId);
     }
 
     private void tryReleaseWakelock() {
@@ -140,20 +289,25 @@ public class UpdaterController {
         }
     }
 
-    private void addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
-        if (entry.mDownloadClient != null) {
-            return;
+    /**
+     * @return whether the download can start, false if the update is already busy
+     */
+    private boolean addDownloadClient(DownloadEntry entry, DownloadClient downloadClient,
+            DownloadProgress downloadProgress) {
+        if (entry.transition(Stage.IDLE,
+                State.downloading(downloadClient, downloadProgress)) == null) {
+            return false;
         }
-        entry.mDownloadClient = downloadClient;
-        mActiveDownloads++;
+        startProgressSampler();
+        return true;
     }
 
-    private void removeDownloadClient(DownloadEntry entry) {
-        if (entry.mDownloadClient == null) {
-            return;
-        }
-        entry.mDownloadClient = null;
-        mActiveDownloads--;
+    /**
+     * @return the client that was downloading the update, or null if it wasn't downloading
+     */
+    private DownloadClient removeDownloadClient(DownloadEntry entry) {
+        State previous = entry.transition(Stage.DOWNLOADING, State.IDLE);
+        return previous != null ? previous.mDownloadClient : null;
     }
 
     private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
@@ -179,8 +333,8 @@ public class UpdaterController {
                 }
                 update.setStatus(UpdateStatus.DOWNLOADING);
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
-                        SQLiteDatabase.CONFLICT_REPLACE)).start();
+                mUpdatesDbWriter.addUpdateWithOnConflict(update,
+                        SQLiteDatabase.CONFLICT_REPLACE);
                 notifyUpdateChange(downloadId);
             }
 
@@ -190,10 +344,10 @@ public class UpdaterController {
                 DownloadEntry entry = mDownloads.get(downloadId);
                 if (entry != null) {
                     Update update = entry.mUpdate;
-                    update.setStatus(UpdateStatus.VERIFYING);
-                    removeDownloadClient(entry);
-                    verifyUpdateAsync(downloadId);
-                    notifyUpdateChange(downloadId);
+                    if (verifyUpdateAsync(entry, Stage.DOWNLOADING)) {
+                        update.setStatus(UpdateStatus.VERIFYING);
+                        notifyUpdateChange(downloadId);
+                    }
                     tryReleaseWakelock();
                 }
             }
@@ -205,10 +359,9 @@ public class UpdaterController {
                     // Already notified
                 } else {
                     DownloadEntry entry = mDownloads.get(downloadId);
-                    if (entry != null) {
+                    if (entry != null && removeDownloadClient(entry) != null) {
                         Update update = entry.mUpdate;
                         Log.e(TAG, "Download failed");
-                        removeDownloadClient(entry);
                         update.setStatus(UpdateStatus.PAUSED_ERROR);
                         notifyUpdateChange(downloadId);
                     }
@@ -218,84 +371,329 @@ public class UpdaterController {
         };
     }
 
-    private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
-        return new DownloadClient.ProgressListener() {
-            private long mLastUpdate = 0;
-            private int mProgress = 0;
+    /**
+     * Set how often the progress of the downloads is published. Listeners
+     * that display it can ask for a shorter interval while they're visible.
+     */
+    public synchronized void setProgressInterval(long intervalMs) {
+        if (mProgressInterval == intervalMs) {
+            return;
+        }
+        mProgressInterval = intervalMs;
+        if (mProgressSamplerTask != null) {
+            mProgressSamplerTask.cancel(false);
+            mProgressSamplerTask = null;
+            startProgressSampler();
+        }
+    }
 
-            @Override
-            public void update(long bytesRead, long contentLength, long speed, long eta) {
-                DownloadEntry entry = mDownloads.get(downloadId);
-                if (entry == null) {
-                    return;
-                }
-                Update update = entry.mUpdate;
-                if (contentLength <= 0) {
-                    if (update.getFileSize() <= 0) {
-                        return;
-                    } else {
-                        contentLength = update.getFileSize();
-                    }
-                }
-                if (contentLength <= 0) {
-                    return;
-                }
-                final long now = SystemClock.elapsedRealtime();
-                int progress = Math.round(bytesRead * 100f / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
-                    mProgress = progress;
-                    mLastUpdate = now;
-                    update.setProgress(progress);
-                    update.setEta(eta);
-                    update.setSpeed(speed);
-                    notifyDownloadProgress(downloadId);
-                }
+    private synchronized void startProgressSampler() {
+        if (mProgressSamplerTask == null) {
+            mProgressSamplerTask = mProgressSampler.scheduleAtFixedRate(this::sampleProgress,
+                    mProgressInterval, mProgressInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void stopProgressSampler() {
+        // Downloads started after the last sample are only visible here
+        if (mProgressSamplerTask != null && !hasActiveDownloads()) {
+            mProgressSamplerTask.cancel(false);
+            mProgressSamplerTask = null;
+        }
+    }
+
+    private void sampleProgress() {
+        final long now = SystemClock.elapsedRealtime();
+        boolean active = false;
+        for (DownloadEntry entry : mDownloads.values()) {
+            DownloadProgress progress = entry.mState.get().mDownloadProgress;
+            if (progress == null) {
+                continue;
             }
-        };
+            active = true;
+            if (progress.sample(entry.mUpdate, now, MAX_REPORT_INTERVAL_MS)) {
+                notifyDownloadProgress(entry.mUpdate.getDownloadId(),
+                        progress.getReportedBytes());
+            }
+        }
+        if (!active) {
+            stopProgressSampler();
+        }
     }
 
-    @SuppressLint("SetWorldReadable")
-    private void verifyUpdateAsync(final String downloadId) {
-        mVerifyingUpdates.add(downloadId);
-        new Thread(() -> {
+    /**
+     * Check the package as soon as its central directory and signature are
+     * downloaded, so that packages that can't be installed are stopped early.
+     */
+    private DownloadClient.TailListener getTailListener(final String downloadId) {
+        return (tail, tailOffset, contentLength) -> {
             DownloadEntry entry = mDownloads.get(downloadId);
-            if (entry != null) {
-                Update update = entry.mUpdate;
-                File file = update.getFile();
-                if (file.exists() && verifyPackage(file)) {
-                    //noinspection ResultOfMethodCallIgnored
-                    file.setReadable(true, false);
-                    update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                    mUpdatesDbHelper.changeUpdateStatus(update);
-                    update.setStatus(UpdateStatus.VERIFIED);
+            if (entry == null) {
+                return;
+            }
+            Update update = entry.mUpdate;
+            if (update.getFileSize() < contentLength) {
+                update.setFileSize(contentLength);
+            }
+            String error = null;
+            try {
+                ZipArchiveReader zip = Utils.openPackageTail(tail, tailOffset, contentLength);
+                if (!zip.hasSignatureFooter()) {
+                    error = "isn't signed";
                 } else {
+                    PackageMetadata packageMetadata = Utils.readPartialPackageMetadata(zip);
+                    if (Utils.isPackageCompatible(packageMetadata, null)) {
+                        update.setPackageMetadata(packageMetadata);
+                        // The list shows what the package itself declares
+                        notifyUpdateChange(downloadId);
+                    } else {
+                        error = "can't be installed on this build";
+                    }
+                }
+            } catch (IOException e) {
+                // The package will be fully checked once downloaded
+                Log.w(TAG, "Could not read the tail of " + downloadId, e);
+            }
+            if (error != null) {
+                DownloadClient downloadClient = removeDownloadClient(entry);
+                if (downloadClient != null) {
+                    Log.e(TAG, downloadId + " " + error + ", stopping the download");
+                    downloadClient.cancel();
+                    // Don't resume it later, like a package that failed the verification
                     update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                    mUpdatesDbHelper.removeUpdate(downloadId);
+                    update.setVerificationKey(null);
+                    deleteUpdateAsync(update);
                     update.setProgress(0);
                     update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                    notifyUpdateChange(downloadId);
                 }
-                mVerifyingUpdates.remove(downloadId);
-                notifyUpdateChange(downloadId);
             }
-        }).start();
+        };
     }
 
-    private boolean verifyPackage(File file) {
-        try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
-            Log.e(TAG, "Verification successful");
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Verification failed", e);
-            if (file.exists()) {
+    /**
+     * @param from the stage the update is expected to be in
+     * @return whether the verification started
+     */
+    private boolean verifyUpdateAsync(DownloadEntry entry, Stage from) {
+        VerificationTask task = new VerificationTask(entry);
+        if (entry.transition(from, State.verifying(task)) == null) {
+            Log.d(TAG, entry.mUpdate.getDownloadId() + " is no longer " + from);
+            return false;
+        }
+        mExecutor.execute(task);
+        return true;
+    }
+
+    /**
+     * Stop the verification of the given update, if any. The state of the
+     * update isn't changed, it's up to the caller.
+     *
+     * @return whether the update was being verified
+     */
+    private boolean cancelVerification(DownloadEntry entry) {
+        State previous = entry.transition(Stage.VERIFYING, State.IDLE);
+        if (previous == null) {
+            return false;
+        }
+        Log.d(TAG, "Cancelling the verification of " + entry.mUpdate.getDownloadId());
+        previous.mVerificationTask.cancel();
+        return true;
+    }
+
+    private static class VerificationCancelledException extends RuntimeException {
+    }
+
+    private class VerificationTask implements Runnable, RecoverySystem.ProgressListener {
+        private final DownloadEntry mEntry;
+        private final String mDownloadId;
+        private volatile boolean mCancelled;
+
+        private VerificationTask(DownloadEntry entry) {
+            mEntry = entry;
+            mDownloadId = entry.mUpdate.getDownloadId();
+        }
+
+        private void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public void onProgress(int progress) {
+            // This is the only point where RecoverySystem lets us stop the verification
+            if (mCancelled) {
+                throw new VerificationCancelledException();
+            }
+            Update update = mEntry.mUpdate;
+            if (update.getVerificationProgress() != progress) {
+                update.setVerificationProgress(progress);
+                notifyVerificationProgress(mDownloadId);
+            }
+        }
+
+        @SuppressLint("SetWorldReadable")
+        @Override
+        public void run() {
+            if (mCancelled) {
+                // Cancelled while waiting for the executor
+                return;
+            }
+            Update update = mEntry.mUpdate;
+            update.setVerificationProgress(0);
+            File file = update.getFile();
+            boolean verified = file.exists() && (isAlreadyVerified(update) ||
+                    verifyPackage(file) || repairPackage(update));
+            if (!mEntry.finishVerification(this)) {
+                Log.d(TAG, "Verification of " + mDownloadId + " cancelled");
+                return;
+            }
+            if (verified) {
                 //noinspection ResultOfMethodCallIgnored
-                file.delete();
+                file.setReadable(true, false);
+                update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+                mUpdatesDbWriter.changeUpdateStatus(update);
+                rememberVerification(update);
+                if (update.getPackageMetadata() == null ||
+                        !update.getPackageMetadata().isComplete()) {
+                    extractPackageMetadata(update);
+                }
+                update.setStatus(UpdateStatus.VERIFIED);
             } else {
-                // The download was probably stopped. Exit silently
-                Log.e(TAG, "Error while verifying the file", e);
+                if (file.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                update.setVerificationKey(null);
+                mUpdatesDbWriter.removeUpdate(mDownloadId);
+                update.setProgress(0);
+                update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+            }
+            update.setVerificationProgress(0);
+            notifyUpdateChange(mDownloadId);
+        }
+
+        private boolean verifyPackage(File file) {
+            try {
+                long start = SystemClock.elapsedRealtime();
+                RecoverySystem.verifyPackage(file, this, null);
+                recordVerificationThroughput(file.length(),
+                        SystemClock.elapsedRealtime() - start);
+                Log.d(TAG, "Verification successful");
+                return true;
+            } catch (VerificationCancelledException e) {
+                return false;
+            } catch (Exception e) {
+                if (file.exists()) {
+                    Log.e(TAG, "Verification failed", e);
+                } else {
+                    // The download was probably stopped. Exit silently
+                    Log.e(TAG, "Error while verifying the file", e);
+                }
+                return false;
             }
+        }
+
+        /**
+         * Download again the chunks of the package that don't match the hashes
+         * published by the server, rather than the whole package
+         */
+        private boolean repairPackage(Update update) {
+            String chunkManifestUrl = update.getChunkManifestUrl();
+            File file = update.getFile();
+            if (mCancelled || chunkManifestUrl == null || !file.exists()) {
+                return false;
+            }
+            try {
+                ChunkVerifier.Manifest manifest =
+                        ChunkVerifier.downloadManifest(chunkManifestUrl);
+                if (!ChunkVerifier.repair(file, update.getDownloadUrl(), manifest)) {
+                    Log.e(TAG, "Could not repair " + update.getDownloadId());
+                    return false;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not repair " + update.getDownloadId(), e);
+                return false;
+            }
+            return !mCancelled && verifyPackage(file);
+        }
+    }
+
+    /**
+     * Keep the throughput of the last verifications, they are bound by the
+     * speed of the storage and show whether it degrades over time.
+     */
+    private void recordVerificationThroughput(long bytes, long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        long kbps = bytes * 1000 / 1024 / millis;
+        Log.d(TAG, "Verified " + bytes + " bytes in " + millis + " ms (" +
+                String.format(Locale.ROOT, "%.1f", kbps / 1024f) + " MB/s)");
+
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        List<String> samples = new ArrayList<>();
+        samples.add(String.valueOf(kbps));
+        String history = preferences.getString(Constants.PREF_VERIFICATION_THROUGHPUT, "");
+        for (String sample : history.split(",")) {
+            if (samples.size() >= MAX_THROUGHPUT_SAMPLES) {
+                break;
+            }
+            if (!sample.isEmpty()) {
+                samples.add(sample);
+            }
+        }
+        preferences.edit()
+                .putString(Constants.PREF_VERIFICATION_THROUGHPUT, String.join(",", samples))
+                .apply();
+    }
+
+    /**
+     * Check whether the file didn't change since it was last verified, in
+     * which case the expensive signature verification can be skipped
+     */
+    private boolean isAlreadyVerified(Update update) {
+        String verificationKey = update.getVerificationKey();
+        if (verificationKey == null) {
             return false;
         }
+        try {
+            if (verificationKey.equals(FileUtils.computeFingerprint(update.getFile()))) {
+                Log.d(TAG, update.getDownloadId() + " didn't change since its verification");
+                return true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not compute the fingerprint of " + update.getDownloadId(), e);
+        }
+        return false;
+    }
+
+    private void rememberVerification(Update update) {
+        try {
+            String verificationKey = FileUtils.computeFingerprint(update.getFile());
+            if (!verificationKey.equals(update.getVerificationKey())) {
+                update.setVerificationKey(verificationKey);
+                mUpdatesDbWriter.changeUpdateVerificationKey(update);
+            }
+        } catch (IOException e) {
+            // Not fatal, the package will be verified again next time
+            Log.e(TAG, "Could not compute the fingerprint of " + update.getDownloadId(), e);
+        }
+    }
+
+    private void extractPackageMetadata(Update update) {
+        try {
+            PackageMetadata packageMetadata = Utils.readPackageMetadata(update.getFile());
+            update.setPackageMetadata(packageMetadata);
+            mUpdatesDbWriter.changeUpdatePackageMetadata(update);
+            if (packageMetadata.isABUpdate()) {
+                update.setPayloadInfo(PayloadParser.parse(update.getFile(),
+                        packageMetadata.getPayloadOffset()));
+            }
+        } catch (IOException e) {
+            // Not fatal, the package will be read again when installing it
+            Log.e(TAG, "Could not read the metadata of " + update.getDownloadId(), e);
+        }
     }
 
     private boolean fixUpdateStatus(Update update) {
@@ -316,20 +714,21 @@ public class UpdaterController {
         return true;
     }
 
-    public void setUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
-        List<String> toRemove = new ArrayList<>();
+    public void setUpdatesAvailableOnline(Collection<String> downloadIds, boolean purgeList) {
+        Set<String> onlineIds = new HashSet<>(downloadIds);
+        List<Update> toRemove = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
-            boolean online = downloadIds.contains(entry.mUpdate.getDownloadId());
+            boolean online = onlineIds.contains(entry.mUpdate.getDownloadId());
             entry.mUpdate.setAvailableOnline(online);
-            if (!online && purgeList &&
+            if (!online && purgeList && entry.getStage() == Stage.IDLE &&
                     entry.mUpdate.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN) {
-                toRemove.add(entry.mUpdate.getDownloadId());
+                toRemove.add(entry.mUpdate);
             }
         }
-        for (String downloadId : toRemove) {
-            Log.d(TAG, downloadId + " no longer available online, removing");
-            mDownloads.remove(downloadId);
-            notifyUpdateDelete(downloadId);
+        for (Update update : toRemove) {
+            Log.d(TAG, update.getDownloadId() + " no longer available online, removing");
+            mDownloads.remove(update.getDownloadId());
+            notifyUpdateDelete(update);
         }
     }
 
@@ -346,6 +745,7 @@ public class UpdaterController {
                 Update updateAdded = entry.mUpdate;
                 updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
                 updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+                updateAdded.setChunkManifestUrl(updateInfo.getChunkManifestUrl());
             }
             return false;
         }
@@ -357,36 +757,41 @@ public class UpdaterController {
             return false;
         }
         update.setAvailableOnline(availableOnline);
-        mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
-        return true;
+        return mDownloads.putIfAbsent(update.getDownloadId(), new DownloadEntry(update)) == null;
     }
 
     @SuppressLint("WakelockTimeout")
     public void startDownload(String downloadId) {
         Log.d(TAG, "Starting " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
-            return;
-        }
         DownloadEntry entry = mDownloads.get(downloadId);
         if (entry == null) {
             Log.e(TAG, "Could not get download entry");
             return;
         }
+        if (entry.getStage() != Stage.IDLE) {
+            return;
+        }
         Update update = entry.mUpdate;
         File destination = new File(mDownloadRoot, update.getName());
-        if (destination.exists()) {
+        if (destination.exists() || DownloadClient.getTailFile(destination).exists()) {
             destination = Utils.appendSequentialNumber(destination);
             Log.d(TAG, "Changing name with " + destination.getName());
         }
         update.setFile(destination);
+        update.setPackageMetadata(null);
+        update.setPayloadInfo(null);
+        update.setVerificationKey(null);
+        DownloadProgress downloadProgress = new DownloadProgress();
         DownloadClient downloadClient;
         try {
             downloadClient = new DownloadClient.Builder()
                     .setUrl(update.getDownloadUrl())
                     .setDestination(update.getFile())
                     .setDownloadCallback(getDownloadCallback(downloadId))
-                    .setProgressListener(getProgressListener(downloadId))
+                    .setProgressListener(downloadProgress)
                     .setUseDuplicateLinks(true)
+                    .setTailFirst(true)
+                    .setTailListener(getTailListener(downloadId))
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -394,7 +799,10 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return;
         }
-        addDownloadClient(entry, downloadClient);
+        if (!addDownloadClient(entry, downloadClient, downloadProgress)) {
+            Log.d(TAG, downloadId + " is already busy");
+            return;
+        }
         update.setStatus(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
@@ -404,17 +812,17 @@ public class UpdaterController {
     @SuppressLint("WakelockTimeout")
     public void resumeDownload(String downloadId) {
         Log.d(TAG, "Resuming " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
-            return;
-        }
         DownloadEntry entry = mDownloads.get(downloadId);
         if (entry == null) {
             Log.e(TAG, "Could not get download entry");
             return;
         }
+        if (entry.getStage() != Stage.IDLE) {
+            return;
+        }
         Update update = entry.mUpdate;
         File file = update.getFile();
-        if (file == null || !file.exists()) {
+        if (file == null || (!file.exists() && !DownloadClient.getTailFile(file).exists())) {
             Log.e(TAG, "The destination file of " + downloadId + " doesn't exist, can't resume");
             update.setStatus(UpdateStatus.PAUSED_ERROR);
             notifyUpdateChange(downloadId);
@@ -422,18 +830,22 @@ public class UpdaterController {
         }
         if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
             Log.d(TAG, "File already downloaded, starting verification");
-            update.setStatus(UpdateStatus.VERIFYING);
-            verifyUpdateAsync(downloadId);
-            notifyUpdateChange(downloadId);
+            if (verifyUpdateAsync(entry, Stage.IDLE)) {
+                update.setStatus(UpdateStatus.VERIFYING);
+                notifyUpdateChange(downloadId);
+            }
         } else {
+            DownloadProgress downloadProgress = new DownloadProgress();
             DownloadClient downloadClient;
             try {
                 downloadClient = new DownloadClient.Builder()
                         .setUrl(update.getDownloadUrl())
                         .setDestination(update.getFile())
                         .setDownloadCallback(getDownloadCallback(downloadId))
-                        .setProgressListener(getProgressListener(downloadId))
+                        .setProgressListener(downloadProgress)
                         .setUseDuplicateLinks(true)
+                        .setTailFirst(true)
+                        .setTailListener(getTailListener(downloadId))
                         .build();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
@@ -441,7 +853,10 @@ public class UpdaterController {
                 notifyUpdateChange(downloadId);
                 return;
             }
-            addDownloadClient(entry, downloadClient);
+            if (!addDownloadClient(entry, downloadClient, downloadProgress)) {
+                Log.d(TAG, downloadId + " is already busy");
+                return;
+            }
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
             downloadClient.resume();
@@ -451,66 +866,84 @@ public class UpdaterController {
 
     public void pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
-        if (!isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
             return;
         }
-
-        DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry != null) {
-            entry.mDownloadClient.cancel();
-            removeDownloadClient(entry);
-            entry.mUpdate.setStatus(UpdateStatus.PAUSED);
-            entry.mUpdate.setEta(0);
-            entry.mUpdate.setSpeed(0);
+        Update update = entry.mUpdate;
+        if (cancelVerification(entry)) {
+            // The file is complete, resuming the download verifies it again
+            update.setStatus(UpdateStatus.PAUSED);
+            update.setVerificationProgress(0);
+            notifyUpdateChange(downloadId);
+            return;
+        }
+        DownloadClient downloadClient = removeDownloadClient(entry);
+        if (downloadClient != null) {
+            downloadClient.cancel();
+            update.setStatus(UpdateStatus.PAUSED);
+            update.setEta(0);
+            update.setSpeed(0);
             notifyUpdateChange(downloadId);
         }
     }
 
     private void deleteUpdateAsync(final Update update) {
-        new Thread(() -> {
-            File file = update.getFile();
+        mUpdatesDbWriter.removeUpdate(update.getDownloadId());
+        // The update can get a new file if downloaded again, only delete this one.
+        // New downloads don't use its name until both files are gone.
+        final File file = update.getFile();
+        final File tailFile = DownloadClient.getTailFile(file);
+        mIoExecutor.execute(() -> {
             if (file.exists() && !file.delete()) {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
-            mUpdatesDbHelper.removeUpdate(update.getDownloadId());
-        }).start();
+            if (tailFile.exists() && !tailFile.delete()) {
+                Log.e(TAG, "Could not delete " + tailFile.getAbsolutePath());
+            }
+        });
     }
 
     public void deleteUpdate(String downloadId) {
         Log.d(TAG, "Deleting update: " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.getStage() == Stage.DOWNLOADING) {
             return;
         }
-        DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry != null) {
-            Update update = entry.mUpdate;
-            update.setStatus(UpdateStatus.DELETED);
-            update.setProgress(0);
-            update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-            deleteUpdateAsync(update);
-
-            final boolean isLocalUpdate = Update.LOCAL_ID.equals(downloadId);
-            if (!isLocalUpdate && !update.getAvailableOnline()) {
-                Log.d(TAG, "Download no longer available online, removing");
-                mDownloads.remove(downloadId);
-                notifyUpdateDelete(downloadId);
-            } else {
-                notifyUpdateChange(downloadId);
-            }
+        cancelVerification(entry);
+        Update update = entry.mUpdate;
+        update.setStatus(UpdateStatus.DELETED);
+        update.setProgress(0);
+        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        deleteUpdateAsync(update);
+
+        final boolean isLocalUpdate = Update.LOCAL_ID.equals(downloadId);
+        if (!isLocalUpdate && !update.getAvailableOnline()) {
+            Log.d(TAG, "Download no longer available online, removing");
+            mDownloads.remove(downloadId);
+            notifyUpdateDelete(update);
+        } else {
+            notifyUpdateChange(downloadId);
         }
     }
 
+    /**
+     * @return the current state of all the updates, which won't change anymore
+     */
     public List<UpdateInfo> getUpdates() {
         List<UpdateInfo> updates = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
-            updates.add(entry.mUpdate);
+            updates.add(entry.mUpdate.getSnapshot());
         }
         return updates;
     }
 
+    /**
+     * @return the current state of the update, which won't change anymore
+     */
     public UpdateInfo getUpdate(String downloadId) {
         DownloadEntry entry = mDownloads.get(downloadId);
-        return entry != null ? entry.mUpdate : null;
+        return entry != null ? entry.mUpdate.getSnapshot() : null;
     }
 
     Update getActualUpdate(String downloadId) {
@@ -518,22 +951,34 @@ public class UpdaterController {
         return entry != null ? entry.mUpdate : null;
     }
 
+    private boolean isInStage(String downloadId, Stage stage) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        return entry != null && entry.getStage() == stage;
+    }
+
+    private boolean hasEntryInStage(Stage stage) {
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.getStage() == stage) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean isDownloading(String downloadId) {
-        //noinspection ConstantConditions
-        return mDownloads.containsKey(downloadId) &&
-                mDownloads.get(downloadId).mDownloadClient != null;
+        return isInStage(downloadId, Stage.DOWNLOADING);
     }
 
     public boolean hasActiveDownloads() {
-        return mActiveDownloads > 0;
+        return hasEntryInStage(Stage.DOWNLOADING);
     }
 
     public boolean isVerifyingUpdate() {
-        return mVerifyingUpdates.size() > 0;
+        return hasEntryInStage(Stage.VERIFYING);
     }
 
     public boolean isVerifyingUpdate(String downloadId) {
-        return mVerifyingUpdates.contains(downloadId);
+        return isInStage(downloadId, Stage.VERIFYING);
     }
 
     public boolean isInstallingUpdate() {
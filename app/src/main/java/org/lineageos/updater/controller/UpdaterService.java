@@ -19,10 +19,7 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ServiceInfo;
 import android.os.Binder;
@@ -32,7 +29,6 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.R;
@@ -75,7 +71,7 @@ public class UpdaterService extends Service {
     private final IBinder mBinder = new LocalBinder();
     private boolean mHasClients;
 
-    private BroadcastReceiver mBroadcastReceiver;
+    private UpdaterController.UpdateListener mUpdateListener;
     private NotificationCompat.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
     private NotificationCompat.BigTextStyle mNotificationStyle;
@@ -106,50 +102,46 @@ public class UpdaterService extends Service {
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         mNotificationBuilder.setContentIntent(intent);
 
-        mBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
+        mUpdateListener = event -> {
+            String downloadId = event.getDownloadId();
+            switch (event.getType()) {
+                case STATUS_CHANGED: {
+                    setNotificationTitle(event.getUpdate());
                     Bundle extras = new Bundle();
-                    extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, downloadId);
+                    extras.putString(EXTRA_DOWNLOAD_ID, downloadId);
                     mNotificationBuilder.setExtras(extras);
-                    handleUpdateStatusChange(update);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    handleDownloadProgressChange(update);
-                } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    handleInstallProgress(update);
-                } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
+                    handleUpdateStatusChange(event);
+                    break;
+                }
+                case DOWNLOAD_PROGRESS:
+                    handleDownloadProgressChange(event);
+                    break;
+                case VERIFICATION_PROGRESS:
+                    handleVerificationProgress(event);
+                    break;
+                case INSTALL_PROGRESS:
+                    handleInstallProgress(event);
+                    break;
+                case REMOVED: {
                     final boolean isLocalUpdate = Update.LOCAL_ID.equals(downloadId);
                     Bundle extras = mNotificationBuilder.getExtras();
                     if (extras != null && !isLocalUpdate && downloadId.equals(
-                            extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
+                            extras.getString(EXTRA_DOWNLOAD_ID))) {
                         mNotificationBuilder.setExtras(null);
-                        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                        if (update.getStatus() != UpdateStatus.INSTALLED) {
+                        if (event.getStatus() != UpdateStatus.INSTALLED) {
                             mNotificationManager.cancel(NOTIFICATION_ID);
                         }
                     }
+                    break;
                 }
             }
         };
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
-
+        mUpdaterController.addUpdateListener(mUpdateListener, getMainExecutor());
     }
 
     @Override
     public void onDestroy() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mUpdaterController.removeUpdateListener(mUpdateListener);
         super.onDestroy();
     }
 
@@ -176,6 +168,16 @@ public class UpdaterService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Starting service");
 
+        if (mUpdaterController.isReady()) {
+            handleCommand(intent);
+        } else {
+            // The commands refer to updates that aren't loaded yet
+            mUpdaterController.whenReady(() -> handleCommand(intent), getMainExecutor());
+        }
+        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
+    }
+
+    private void handleCommand(Intent intent) {
         if (intent == null || intent.getAction() == null) {
             if (ABUpdateInstaller.isInstallingUpdate(this)) {
                 // The service is being restarted.
@@ -200,7 +202,7 @@ public class UpdaterService extends Service {
                 throw new IllegalArgumentException(update.getDownloadId() + " is not verified");
             }
             try {
-                if (Utils.isABUpdate(update.getFile())) {
+                if (Utils.isABUpdate(update)) {
                     ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
                             mUpdaterController);
                     installer.install(downloadId);
@@ -241,7 +243,6 @@ public class UpdaterService extends Service {
                 installer.resume();
             }
         }
-        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
     }
 
     public UpdaterController getUpdaterController() {
@@ -256,8 +257,8 @@ public class UpdaterService extends Service {
         }
     }
 
-    private void handleUpdateStatusChange(UpdateInfo update) {
-        switch (update.getStatus()) {
+    private void handleUpdateStatusChange(UpdateEvent event) {
+        switch (event.getStatus()) {
             case DELETED: {
                 stopForeground(STOP_FOREGROUND_DETACH);
                 mNotificationBuilder.setOngoing(false);
@@ -288,7 +289,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download);
                 mNotificationBuilder.addAction(android.R.drawable.ic_media_pause,
                         getString(R.string.pause_button),
-                        getPausePendingIntent(update.getDownloadId()));
+                        getPausePendingIntent(event.getDownloadId()));
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
@@ -298,7 +299,7 @@ public class UpdaterService extends Service {
             case PAUSED: {
                 stopForeground(STOP_FOREGROUND_DETACH);
                 // In case we pause before the first progress update
-                mNotificationBuilder.setProgress(100, update.getProgress(), false);
+                mNotificationBuilder.setProgress(100, event.getProgress(), false);
                 mNotificationBuilder.mActions.clear();
                 String text = getString(R.string.download_paused_notification);
                 mNotificationStyle.bigText(text);
@@ -306,7 +307,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setSmallIcon(R.drawable.ic_pause);
                 mNotificationBuilder.addAction(android.R.drawable.ic_media_play,
                         getString(R.string.resume_button),
-                        getResumePendingIntent(update.getDownloadId()));
+                        getResumePendingIntent(event.getDownloadId()));
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(false);
@@ -316,7 +317,7 @@ public class UpdaterService extends Service {
             }
             case PAUSED_ERROR: {
                 stopForeground(STOP_FOREGROUND_DETACH);
-                int progress = update.getProgress();
+                int progress = event.getProgress();
                 // In case we pause before the first progress update
                 mNotificationBuilder.setProgress(progress > 0 ? 100 : 0, progress, false);
                 mNotificationBuilder.mActions.clear();
@@ -326,7 +327,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
                 mNotificationBuilder.addAction(android.R.drawable.ic_media_play,
                         getString(R.string.resume_button),
-                        getResumePendingIntent(update.getDownloadId()));
+                        getResumePendingIntent(event.getDownloadId()));
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(false);
@@ -340,6 +341,9 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setStyle(mNotificationStyle);
                 mNotificationBuilder.setSmallIcon(R.drawable.ic_system_update);
                 mNotificationBuilder.mActions.clear();
+                mNotificationBuilder.addAction(android.R.drawable.ic_media_pause,
+                        getString(R.string.pause_button),
+                        getPausePendingIntent(event.getDownloadId()));
                 String text = getString(R.string.verifying_download_notification);
                 mNotificationStyle.bigText(text);
                 mNotificationBuilder.setTicker(text);
@@ -415,10 +419,10 @@ public class UpdaterService extends Service {
 
                 SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
                 boolean deleteUpdate = pref.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false);
-                boolean isLocal = Update.LOCAL_ID.equals(update.getDownloadId());
+                boolean isLocal = Update.LOCAL_ID.equals(event.getDownloadId());
                 // Always delete local updates
                 if (deleteUpdate || isLocal) {
-                    mUpdaterController.deleteUpdate(update.getDownloadId());
+                    mUpdaterController.deleteUpdate(event.getDownloadId());
                 }
 
                 tryStopSelf();
@@ -446,7 +450,7 @@ public class UpdaterService extends Service {
             case INSTALLATION_SUSPENDED: {
                 stopForeground(STOP_FOREGROUND_DETACH);
                 // In case we pause before the first progress update
-                mNotificationBuilder.setProgress(100, update.getProgress(), false);
+                mNotificationBuilder.setProgress(100, event.getProgress(), false);
                 mNotificationBuilder.mActions.clear();
                 String text = getString(R.string.installation_suspended_notification);
                 mNotificationStyle.bigText(text);
@@ -465,32 +469,43 @@ public class UpdaterService extends Service {
         }
     }
 
-    private void handleDownloadProgressChange(UpdateInfo update) {
-        int progress = update.getProgress();
+    private void handleDownloadProgressChange(UpdateEvent event) {
+        int progress = event.getProgress();
         mNotificationBuilder.setProgress(100, progress, false);
 
         String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
         mNotificationStyle.setSummaryText(percent);
 
-        setNotificationTitle(update);
+        setNotificationTitle(event.getUpdate());
 
-        String speed = Formatter.formatFileSize(this, update.getSpeed());
-        CharSequence eta = StringGenerator.formatETA(this, update.getEta() * 1000);
+        String speed = Formatter.formatFileSize(this, event.getSpeed());
+        CharSequence eta = StringGenerator.formatETA(this, event.getEta() * 1000);
         mNotificationStyle.bigText(
                 getString(R.string.text_download_speed, eta, speed));
 
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
     }
 
-    private void handleInstallProgress(UpdateInfo update) {
-        setNotificationTitle(update);
-        int progress = update.getInstallProgress();
+    private void handleVerificationProgress(UpdateEvent event) {
+        if (event.getStatus() != UpdateStatus.VERIFYING) {
+            return;
+        }
+        int progress = event.getProgress();
+        mNotificationBuilder.setProgress(100, progress, false);
+        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
+        mNotificationStyle.setSummaryText(percent);
+        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+    }
+
+    private void handleInstallProgress(UpdateEvent event) {
+        setNotificationTitle(event.getUpdate());
+        int progress = event.getProgress();
         mNotificationBuilder.setProgress(100, progress, false);
         String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
         mNotificationStyle.setSummaryText(percent);
         boolean notAB = UpdateInstaller.isInstalling();
         mNotificationStyle.bigText(notAB ? getString(R.string.dialog_prepare_zip_message) :
-                update.getFinalizing() ?
+                event.getUpdate().getFinalizing() ?
                         getString(R.string.finalizing_package) :
                         getString(R.string.preparing_ota_first_boot));
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
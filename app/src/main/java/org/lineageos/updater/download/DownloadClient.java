@@ -28,14 +28,50 @@ public interface DownloadClient {
         void onFailure(boolean cancelled);
     }
 
+    /**
+     * Called by the download thread after every read, implementations must
+     * return immediately and shouldn't allocate.
+     */
     interface ProgressListener {
-        void update(long bytesRead, long contentLength, long speed, long eta);
+        void update(long bytesRead, long contentLength);
     }
 
     interface Headers {
         String get(String name);
     }
 
+    /**
+     * Notified when the end of the file is available, before the rest of the
+     * file is downloaded. Only used for tail-first downloads.
+     */
+    interface TailListener {
+        /**
+         * Called from the download thread, the download continues once this returns.
+         *
+         * @param tail the last bytes of the file
+         * @param tailOffset the offset of the tail in the file
+         * @param contentLength the size of the whole file
+         */
+        void onTailAvailable(byte[] tail, long tailOffset, long contentLength);
+    }
+
+    /**
+     * Synchronous access to arbitrary ranges of a remote file. The methods
+     * perform network operations, so they must not be called from the main thread.
+     */
+    interface RangeReader {
+        /**
+         * @return the size of the remote file
+         */
+        long getContentLength() throws IOException;
+
+        /**
+         * Read the given range of the remote file. The server must support
+         * partial content requests.
+         */
+        byte[] read(long offset, int length) throws IOException;
+    }
+
     /**
      * Start the download. This method has no effect if the download already started.
      */
@@ -54,12 +90,22 @@ public interface DownloadClient {
      */
     void cancel();
 
+    /**
+     * @return the file where the tail of a tail-first download is kept until
+     * the rest of the file is downloaded
+     */
+    static File getTailFile(File destination) {
+        return new File(destination.getPath() + ".tail");
+    }
+
     final class Builder {
         private String mUrl;
         private File mDestination;
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private boolean mTailFirst;
+        private DownloadClient.TailListener mTailListener;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -70,7 +116,14 @@ public interface DownloadClient {
                 throw new IllegalStateException("No download callback defined");
             }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+                    mUseDuplicateLinks, mTailFirst, mTailListener);
+        }
+
+        public RangeReader buildRangeReader() throws IOException {
+            if (mUrl == null) {
+                throw new IllegalStateException("No download URL defined");
+            }
+            return new HttpRangeReader(mUrl);
         }
 
         public Builder setUrl(String url) {
@@ -97,5 +150,21 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Download the end of the file, where zip archives keep their central
+         * directory and signature, before the rest of the file. The download
+         * falls back to the regular order if the server doesn't support
+         * partial content requests.
+         */
+        public Builder setTailFirst(boolean tailFirst) {
+            mTailFirst = tailFirst;
+            return this;
+        }
+
+        public Builder setTailListener(DownloadClient.TailListener tailListener) {
+            mTailListener = tailListener;
+            return this;
+        }
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class HttpRangeReader implements DownloadClient.RangeReader {
+
+    private static final int TIMEOUT_MS = 10000;
+
+    private static final Pattern CONTENT_RANGE =
+            Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final URL mUrl;
+    private long mContentLength = -1;
+
+    HttpRangeReader(String url) throws IOException {
+        mUrl = new URL(url);
+    }
+
+    @Override
+    public synchronized long getContentLength() throws IOException {
+        if (mContentLength < 0) {
+            read(0, 1);
+        }
+        return mContentLength;
+    }
+
+    @Override
+    public byte[] read(long offset, int length) throws IOException {
+        if (offset < 0 || length <= 0) {
+            throw new IllegalArgumentException("Invalid range " + offset + "+" + length);
+        }
+        HttpURLConnection client = (HttpURLConnection) mUrl.openConnection();
+        try {
+            client.setConnectTimeout(TIMEOUT_MS);
+            client.setReadTimeout(TIMEOUT_MS);
+            client.setRequestProperty("Range",
+                    "bytes=" + offset + "-" + (offset + length - 1));
+            int responseCode = client.getResponseCode();
+            if (responseCode != 206) {
+                // Don't download the whole file if the server ignored the range
+                throw new IOException("The server replied with code " + responseCode);
+            }
+            Matcher matcher = CONTENT_RANGE.matcher(
+                    String.valueOf(client.getHeaderField("Content-Range")));
+            if (!matcher.matches() || Long.parseLong(matcher.group(1)) != offset) {
+                throw new IOException("Unexpected range " +
+                        client.getHeaderField("Content-Range"));
+            }
+            long contentLength = getContentLength(matcher);
+            if (contentLength >= 0) {
+                synchronized (this) {
+                    mContentLength = contentLength;
+                }
+            }
+            int expected = (int) (Long.parseLong(matcher.group(2)) - offset + 1);
+            byte[] data = new byte[expected];
+            try (InputStream inputStream = client.getInputStream()) {
+                int read = 0;
+                while (read < expected) {
+                    int count = inputStream.read(data, read, expected - read);
+                    if (count < 0) {
+                        throw new IOException("Unexpected end of stream");
+                    }
+                    read += count;
+                }
+            }
+            return data;
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * @param contentRange the Content-Range header of a partial response
+     * @return the length of the whole file, or -1 if unknown
+     */
+    static long getContentLength(String contentRange) {
+        Matcher matcher = CONTENT_RANGE.matcher(String.valueOf(contentRange));
+        return matcher.matches() ? getContentLength(matcher) : -1;
+    }
+
+    private static long getContentLength(Matcher matcher) {
+        return "*".equals(matcher.group(3)) ? -1 : Long.parseLong(matcher.group(3));
+    }
+}
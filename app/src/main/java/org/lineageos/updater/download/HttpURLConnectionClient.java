@@ -15,16 +15,21 @@
  */
 package org.lineageos.updater.download;
 
-import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -36,12 +41,18 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    // Enough for the central directory and the signature of update packages,
+    // together with the small entries stored right before them
+    private static final int TAIL_SIZE = 256 * 1024;
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final boolean mTailFirst;
+    private final DownloadClient.TailListener mTailListener;
 
     private DownloadThread mDownloadThread;
 
@@ -56,12 +67,15 @@ public class HttpURLConnectionClient implements DownloadClient {
     HttpURLConnectionClient(String url, File destination,
             DownloadClient.ProgressListener progressListener,
             DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
+            boolean useDuplicateLinks, boolean tailFirst,
+            DownloadClient.TailListener tailListener) throws IOException {
         mClient = (HttpURLConnection) new URL(url).openConnection();
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mTailFirst = tailFirst;
+        mTailListener = tailListener;
     }
 
     @Override
@@ -93,7 +107,8 @@ public class HttpURLConnectionClient implements DownloadClient {
     }
 
     private void downloadFileResumeInternal() {
-        if (!mDestination.exists()) {
+        boolean hasTail = mTailFirst && DownloadClient.getTailFile(mDestination).exists();
+        if (!mDestination.exists() && !hasTail) {
             mCallback.onFailure(false);
             return;
         }
@@ -124,56 +139,31 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
+    private static class Tail {
+        private final long mContentLength;
+        private final byte[] mData;
+
+        private Tail(long contentLength, byte[] data) {
+            mContentLength = contentLength;
+            mData = data;
+        }
+
+        private long getOffset() {
+            return mContentLength - mData.length;
+        }
+    }
+
     private class DownloadThread extends Thread {
 
         private long mTotalBytes = 0;
         private long mTotalBytesRead = 0;
 
-        private long mCurSampleBytes = 0;
-        private long mLastMillis = 0;
-        private long mSpeed = -1;
-        private long mEta = -1;
-
         private final boolean mResume;
 
         private DownloadThread(boolean resume) {
             mResume = resume;
         }
 
-        private void calculateSpeed(boolean justResumed) {
-            final long millis = SystemClock.elapsedRealtime();
-            if (justResumed) {
-                // If we don't start over with these after resumption, we get huge numbers for
-                // ETA since the delta will grow, resulting in a very low speed
-                mLastMillis = millis;
-                mSpeed = -1; // we don't want the moving avg with values from who knows when
-
-                // need to do this as well, otherwise the second time we call calculateSpeed(),
-                // the difference (mTotalBytesRead - mCurSampleBytes) will be larger than expected,
-                // resulting in a higher speed calculation
-                mCurSampleBytes = mTotalBytesRead;
-                return;
-            }
-            final long delta = millis - mLastMillis;
-            if (delta > 500) {
-                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
-                if (mSpeed == -1) {
-                    mSpeed = curSpeed;
-                } else {
-                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
-                }
-
-                mLastMillis = millis;
-                mCurSampleBytes = mTotalBytesRead;
-            }
-        }
-
-        private void calculateEta() {
-            if (mSpeed > 0) {
-                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
-            }
-        }
-
         private void changeClientUrl(URL newUrl) throws IOException {
             String range = mClient.getRequestProperty("Range");
             mClient.disconnect();
@@ -253,10 +243,117 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
+        /**
+         * Get the tail of the file from the server it's being downloaded from,
+         * so that both parts come from the same copy. The tail is kept next to
+         * the destination until the rest of the file is downloaded.
+         *
+         * @param contentLength the length of the whole file
+         * @return the tail, or null if the file must be downloaded in order
+         */
+        private Tail fetchTail(long contentLength) throws IOException {
+            if (contentLength <= 0) {
+                return null;
+            }
+            Tail tail;
+            try {
+                HttpRangeReader reader = new HttpRangeReader(mClient.getURL().toString());
+                int tailSize = (int) Math.min(contentLength, TAIL_SIZE);
+                tail = new Tail(contentLength,
+                        reader.read(contentLength - tailSize, tailSize));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not download the tail first, downloading in order", e);
+                return null;
+            }
+
+            File tailFile = DownloadClient.getTailFile(mDestination);
+            File tmpFile = new File(tailFile.getPath() + ".tmp");
+            try (DataOutputStream outputStream = new DataOutputStream(
+                    new FileOutputStream(tmpFile))) {
+                outputStream.writeLong(tail.mContentLength);
+                outputStream.write(tail.mData);
+            }
+            if (!tmpFile.renameTo(tailFile)) {
+                throw new IOException("Could not create " + tailFile);
+            }
+            return tail;
+        }
+
+        private Tail readTailFile(File tailFile) throws IOException {
+            try (DataInputStream inputStream = new DataInputStream(
+                    new FileInputStream(tailFile))) {
+                long contentLength = inputStream.readLong();
+                byte[] data = new byte[(int) (tailFile.length() - Long.BYTES)];
+                inputStream.readFully(data);
+                if (data.length > contentLength) {
+                    throw new IOException("Invalid tail file");
+                }
+                return new Tail(contentLength, data);
+            }
+        }
+
+        private void appendTail(Tail tail) throws IOException {
+            long length = mDestination.length();
+            if (length != tail.mContentLength) {
+                if (length < tail.getOffset() || length > tail.mContentLength) {
+                    throw new IOException("Unexpected size " + length);
+                }
+                // Drop what an interrupted append might have written
+                try (FileChannel channel = new RandomAccessFile(mDestination, "rw")
+                        .getChannel()) {
+                    channel.truncate(tail.getOffset());
+                    ByteBuffer buffer = ByteBuffer.wrap(tail.mData);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, tail.getOffset() + buffer.position());
+                    }
+                }
+            }
+            // Also when appended by a previous attempt that couldn't delete it
+            File tailFile = DownloadClient.getTailFile(mDestination);
+            if (!tailFile.delete()) {
+                Log.w(TAG, "Could not delete " + tailFile);
+            }
+        }
+
+        private void notifyTail(Tail tail) {
+            if (mTailListener != null) {
+                mTailListener.onTailAvailable(tail.mData.clone(), tail.getOffset(),
+                        tail.mContentLength);
+            }
+        }
+
         @Override
         public void run() {
-            boolean justResumed = false;
             try {
+                long bodyOffset = mResume ? mDestination.length() : 0;
+                Tail tail = null;
+                if (mTailFirst && mResume) {
+                    // Without the tail the partial file was downloaded in order
+                    File tailFile = DownloadClient.getTailFile(mDestination);
+                    tail = tailFile.exists() ? readTailFile(tailFile) : null;
+                } else if (mTailFirst) {
+                    File tailFile = DownloadClient.getTailFile(mDestination);
+                    if (tailFile.exists() && !tailFile.delete()) {
+                        Log.w(TAG, "Could not delete " + tailFile);
+                    }
+                    // The length of the file comes with the partial response
+                    mClient.setRequestProperty("Range", "bytes=0-");
+                }
+                if (tail != null) {
+                    notifyTail(tail);
+                    if (isInterrupted()) {
+                        mCallback.onFailure(true);
+                        return;
+                    }
+                    if (bodyOffset >= tail.getOffset()) {
+                        appendTail(tail);
+                        mCallback.onSuccess();
+                        return;
+                    }
+                    mClient.setRequestProperty("Range",
+                            "bytes=" + bodyOffset + "-" + (tail.getOffset() - 1));
+                }
+
                 mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
                 mClient.connect();
                 int responseCode = mClient.getResponseCode();
@@ -266,13 +363,27 @@ public class HttpURLConnectionClient implements DownloadClient {
                     responseCode = mClient.getResponseCode();
                 }
 
+                if (mTailFirst && !mResume && isPartialContentCode(responseCode)) {
+                    // Fetched from the url the body is downloaded from, mirrors included
+                    tail = fetchTail(HttpRangeReader.getContentLength(
+                            mClient.getHeaderField("Content-Range")));
+                    if (tail != null) {
+                        notifyTail(tail);
+                        if (isInterrupted()) {
+                            mCallback.onFailure(true);
+                            return;
+                        }
+                    }
+                }
+
                 mCallback.onResponse(new Headers());
 
-                if (mResume && isPartialContentCode(responseCode)) {
-                    justResumed = true;
+                if (tail != null && isPartialContentCode(responseCode)) {
+                    mTotalBytesRead = bodyOffset + tail.mData.length;
+                } else if (mResume && tail == null && isPartialContentCode(responseCode)) {
                     mTotalBytesRead = mDestination.length();
                     Log.d(TAG, "The server fulfilled the partial content request");
-                } else if (mResume || !isSuccessCode(responseCode)) {
+                } else if (mResume || tail != null || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
                     mCallback.onFailure(isInterrupted());
                     return;
@@ -282,31 +393,35 @@ public class HttpURLConnectionClient implements DownloadClient {
                         InputStream inputStream = mClient.getInputStream();
                         OutputStream outputStream = new FileOutputStream(mDestination, mResume)
                 ) {
-                    mTotalBytes = mClient.getContentLengthLong() + mTotalBytesRead;
+                    mTotalBytes = tail != null ? tail.mContentLength :
+                            mClient.getContentLengthLong() + mTotalBytesRead;
+                    // New downloads ask for the whole file, stop where the tail starts
+                    long remaining = tail != null ? tail.getOffset() - bodyOffset :
+                            Long.MAX_VALUE;
                     byte[] b = new byte[8192];
                     int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
+                    while (!isInterrupted() && remaining > 0 &&
+                            (count = inputStream.read(b, 0,
+                                    (int) Math.min(b.length, remaining))) > 0) {
                         outputStream.write(b, 0, count);
+                        remaining -= count;
                         mTotalBytesRead += count;
-                        calculateSpeed(justResumed);
-                        calculateEta();
-                        justResumed = false; // otherwise we will never get speed and ETA again
                         if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+                            mProgressListener.update(mTotalBytesRead, mTotalBytes);
                         }
                     }
-                    if (mProgressListener != null) {
-                        mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
-                    }
 
                     outputStream.flush();
 
                     if (isInterrupted()) {
                         mCallback.onFailure(true);
-                    } else {
-                        mCallback.onSuccess();
+                        return;
                     }
                 }
+                if (tail != null) {
+                    appendTail(tail);
+                }
+                mCallback.onSuccess();
             } catch (IOException e) {
                 Log.e(TAG, "Error downloading file", e);
                 mCallback.onFailure(isInterrupted());
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.lineageos.updater.download.DownloadClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Verify update packages against the per-chunk hashes published by the
+ * server, so that a corrupted download can be repaired by downloading again
+ * only the chunks that don't match.
+ *
+ * The manifest is a JSON object like:
+ * <pre>
+ * {
+ *   "algorithm": "SHA-256",
+ *   "size": 1234567890,
+ *   "chunk_size": 4194304,
+ *   "hashes": ["5f3c...", ...]
+ * }
+ * </pre>
+ */
+public final class ChunkVerifier {
+
+    private static final String TAG = "ChunkVerifier";
+
+    private static final int TIMEOUT_MS = 10000;
+    private static final int MAX_MANIFEST_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // Chunks hashed by a single task before it stops splitting the work
+    private static final int CHUNKS_PER_TASK = 2;
+
+    // Past this, downloading the package again isn't much slower than repairing it
+    private static final int MAX_REPAIR_PERCENT = 25;
+
+    public static final class Manifest {
+        private final String mAlgorithm;
+        private final long mSize;
+        private final int mChunkSize;
+        private final byte[][] mHashes;
+
+        private Manifest(String algorithm, long size, int chunkSize, byte[][] hashes) {
+            mAlgorithm = algorithm;
+            mSize = size;
+            mChunkSize = chunkSize;
+            mHashes = hashes;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public int getChunkSize() {
+            return mChunkSize;
+        }
+
+        public int getChunkCount() {
+            return mHashes.length;
+        }
+
+        private MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance(mAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                // Checked when parsing the manifest
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private ChunkVerifier() {
+    }
+
+    public static Manifest parseManifest(String json) throws JSONException {
+        JSONObject object = new JSONObject(json);
+        String algorithm = object.getString("algorithm");
+        long size = object.getLong("size");
+        long chunkSize = object.getLong("chunk_size");
+        JSONArray hashes = object.getJSONArray("hashes");
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || size < 0 ||
+                hashes.length() != (size + chunkSize - 1) / chunkSize) {
+            throw new JSONException("Inconsistent chunk manifest");
+        }
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new JSONException("Unsupported algorithm " + algorithm);
+        }
+        byte[][] digests = new byte[hashes.length()][];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = parseHex(hashes.getString(i));
+        }
+        return new Manifest(algorithm, size, (int) chunkSize, digests);
+    }
+
+    private static byte[] parseHex(String hex) throws JSONException {
+        if (hex.length() % 2 != 0) {
+            throw new JSONException("Invalid hash " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new JSONException("Invalid hash " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Download and parse a chunk manifest. This performs network operations,
+     * so it must not be called from the main thread.
+     */
+    public static Manifest downloadManifest(String url) throws IOException {
+        HttpURLConnection client = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            client.setConnectTimeout(TIMEOUT_MS);
+            client.setReadTimeout(TIMEOUT_MS);
+            int responseCode = client.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("The server replied with code " + responseCode);
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (InputStream inputStream = client.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = inputStream.read(buffer)) > 0) {
+                    content.write(buffer, 0, count);
+                    if (content.size() > MAX_MANIFEST_SIZE) {
+                        throw new IOException("Chunk manifest too big");
+                    }
+                }
+            }
+            return parseManifest(content.toString(StandardCharsets.UTF_8.name()));
+        } catch (JSONException e) {
+            throw new IOException("Invalid chunk manifest", e);
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Hash the chunks of the file in parallel on all the available cores
+     *
+     * @return the indexes of the chunks that don't match the manifest, sorted
+     */
+    public static List<Integer> findCorruptedChunks(File file, Manifest manifest)
+            throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return pool.invoke(new VerifyTask(channel, manifest, 0, manifest.getChunkCount()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Download again the chunks of the file that don't match the manifest
+     *
+     * @param file the package to repair
+     * @param url the location of the package
+     * @param manifest the hashes of the package
+     * @return whether the file now matches the manifest
+     */
+    public static boolean repair(File file, String url, Manifest manifest) throws IOException {
+        List<Integer> corrupted = findCorruptedChunks(file, manifest);
+        if (corrupted.isEmpty()) {
+            return true;
+        }
+        if (corrupted.size() * 100L > manifest.getChunkCount() * (long) MAX_REPAIR_PERCENT) {
+            Log.d(TAG, corrupted.size() + " of " + manifest.getChunkCount() +
+                    " chunks are corrupted, not repairing");
+            return false;
+        }
+        Log.d(TAG, "Repairing " + corrupted.size() + " chunks of " + file.getName());
+
+        DownloadClient.RangeReader reader = new DownloadClient.Builder()
+                .setUrl(url)
+                .buildRangeReader();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if (channel.size() > manifest.getSize()) {
+                channel.truncate(manifest.getSize());
+            }
+            for (int chunk : corrupted) {
+                long offset = (long) chunk * manifest.getChunkSize();
+                int length = (int) Math.min(manifest.getChunkSize(),
+                        manifest.getSize() - offset);
+                ByteBuffer data = ByteBuffer.wrap(reader.read(offset, length));
+                while (data.hasRemaining()) {
+                    channel.write(data, offset + data.position());
+                }
+            }
+            channel.force(false);
+        }
+        return findCorruptedChunks(file, manifest).isEmpty();
+    }
+
+    private static class VerifyTask extends RecursiveTask<List<Integer>> {
+        private final FileChannel mChannel;
+        private final Manifest mManifest;
+        private final int mFrom;
+        private final int mTo;
+
+        private VerifyTask(FileChannel channel, Manifest manifest, int from, int to) {
+            mChannel = channel;
+            mManifest = manifest;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected List<Integer> compute() {
+            if (mTo - mFrom > CHUNKS_PER_TASK) {
+                int middle = (mFrom + mTo) >>> 1;
+                VerifyTask left = new VerifyTask(mChannel, mManifest, mFrom, middle);
+                left.fork();
+                List<Integer> result = new VerifyTask(mChannel, mManifest, middle, mTo)
+                        .compute();
+                List<Integer> leftResult = left.join();
+                leftResult.addAll(result);
+                return leftResult;
+            }
+
+            List<Integer> corrupted = new ArrayList<>();
+            MessageDigest digest = mManifest.newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(mManifest.getChunkSize(),
+                    BUFFER_SIZE));
+            try {
+                long fileSize = mChannel.size();
+                for (int chunk = mFrom; chunk < mTo; chunk++) {
+                    long offset = (long) chunk * mManifest.getChunkSize();
+                    long end = Math.min(offset + mManifest.getChunkSize(), mManifest.getSize());
+                    if (end > fileSize || !hashChunk(digest, buffer, offset, end, chunk)) {
+                        corrupted.add(chunk);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return corrupted;
+        }
+
+        private boolean hashChunk(MessageDigest digest, ByteBuffer buffer, long offset,
+                long end, int chunk) throws IOException {
+            digest.reset();
+            long position = offset;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int count = mChannel.read(buffer, position);
+                if (count < 0) {
+                    return false;
+                }
+                digest.update(buffer.array(), 0, count);
+                position += count;
+            }
+            return MessageDigest.isEqual(digest.digest(), mManifest.mHashes[chunk]);
+        }
+    }
+}
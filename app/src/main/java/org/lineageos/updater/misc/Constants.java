@@ -22,6 +22,7 @@ public final class Constants {
 
     public static final String AB_PAYLOAD_BIN_PATH = "payload.bin";
     public static final String AB_PAYLOAD_PROPERTIES_PATH = "payload_properties.txt";
+    public static final String METADATA_PATH = "META-INF/com/android/metadata";
 
     public static final int AUTO_UPDATES_CHECK_INTERVAL_NEVER = 0;
     public static final int AUTO_UPDATES_CHECK_INTERVAL_DAILY = 1;
@@ -35,15 +36,18 @@ public final class Constants {
     public static final String PREF_METERED_NETWORK_WARNING = "pref_metered_network_warning";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
+    public static final String PREF_VERIFICATION_THROUGHPUT = "verification_throughput";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
     public static final String PROP_AB_DEVICE = "ro.build.ab_update";
     public static final String PROP_BUILD_DATE = "ro.build.date.utc";
+    public static final String PROP_BUILD_FINGERPRINT = "ro.build.fingerprint";
     public static final String PROP_BUILD_VERSION = "ro.build.version.release_or_preview_display";
     public static final String PROP_BUILD_VERSION_INCREMENTAL = "ro.build.version.incremental";
     public static final String PROP_DEVICE = "ro.custom.device";
     public static final String PROP_NEXT_DEVICE = "ro.updater.next_device";
+    public static final String PROP_PRODUCT_DEVICE = "ro.product.device";
     public static final String PROP_RELEASE_TYPE = "ro.custom.releasetype";
     public static final String PROP_UPDATER_ALLOW_DOWNGRADING = "lineage.updater.allow_downgrading";
     public static final String PROP_UPDATER_URI = "lineage.updater.uri";
@@ -54,6 +58,12 @@ public final class Constants {
     public static final String PREF_INSTALL_PACKAGE_PATH = "install_package_path";
     public static final String PREF_INSTALL_AGAIN = "install_again";
     public static final String PREF_INSTALL_NOTIFIED = "install_notified";
+    public static final String PREF_INSTALL_UNCRYPT_BOOT_COUNT = "install_uncrypt_boot_count";
+
+    public static final String PREF_EXPORT_SOURCE = "export_source";
+    public static final String PREF_EXPORT_SOURCE_MODIFIED = "export_source_modified";
+    public static final String PREF_EXPORT_DESTINATION = "export_destination";
+    public static final String PREF_EXPORT_OFFSET = "export_offset";
 
     public static final String UPDATE_RECOVERY_EXEC = "/vendor/bin/install-recovery.sh";
     public static final String UPDATE_RECOVERY_PROPERTY = "persist.vendor.recovery_update";
@@ -18,8 +18,11 @@ package org.lineageos.updater.misc;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -28,68 +31,179 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileUtils {
 
     private static final String TAG = "FileUtils";
 
+    private static final int FINGERPRINT_SAMPLES = 16;
+    private static final int FINGERPRINT_SAMPLE_SIZE = 64 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    private static final long COPY_SYNC_INTERVAL = 32 * 1024 * 1024;
+    public static final long COPY_PROGRESS_INTERVAL_MS = 500;
+
     public interface ProgressCallBack {
         void update(int progress);
     }
 
-    private static class CallbackByteChannel implements ReadableByteChannel {
-        private final ProgressCallBack mCallback;
-        private final long mSize;
-        private final ReadableByteChannel mReadableByteChannel;
-        private long mSizeRead;
-        private int mProgress;
-
-        private CallbackByteChannel(ReadableByteChannel readableByteChannel, long expectedSize,
-                ProgressCallBack callback) {
-            this.mCallback = callback;
-            this.mSize = expectedSize;
-            this.mReadableByteChannel = readableByteChannel;
-        }
+    public interface DataListener {
+        /**
+         * @param data the next bytes, only valid until this method returns
+         */
+        void onData(ByteBuffer data) throws IOException;
+    }
 
-        @Override
-        public void close() throws IOException {
-            mReadableByteChannel.close();
-        }
+    /**
+     * Copy the content of a channel to another, from their current positions
+     * until the end of the source.
+     *
+     * The data goes through a large direct buffer, so a copy takes few system
+     * calls and no copies through the Java heap. The destination is synced
+     * every few MB, so that dirty pages don't pile up and stall the rest of the
+     * system when they are eventually written back. The copy stops with an
+     * IOException as soon as the thread is interrupted.
+     *
+     * @param size the expected number of bytes, only used to compute the progress
+     * @param progressCallBack called with the percentage copied, at most every
+     *                         {@link #COPY_PROGRESS_INTERVAL_MS}, can be null
+     * @return the number of bytes copied
+     */
+    public static long copy(FileChannel source, FileChannel destination, long size,
+            ProgressCallBack progressCallBack) throws IOException {
+        return copy(source, destination, 0, size, null, progressCallBack);
+    }
 
-        @Override
-        public boolean isOpen() {
-            return mReadableByteChannel.isOpen();
+    /**
+     * Like {@link #copy(FileChannel, FileChannel, long, ProgressCallBack)},
+     * optionally resuming a previous copy and passing the data to a listener,
+     * e.g. to hash it, as it's copied.
+     *
+     * @param offset the number of bytes already copied. Both channels are moved
+     *               to this position, so they must be seekable if it's not 0
+     * @param dataListener gets the bytes copied from the offset, in order, can be null
+     * @return the total number of bytes copied, including the offset
+     */
+    public static long copy(FileChannel source, FileChannel destination, long offset,
+            long size, DataListener dataListener, ProgressCallBack progressCallBack)
+            throws IOException {
+        if (offset > 0) {
+            source.position(offset);
+            destination.position(offset);
         }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        boolean canSync = true;
+        long copied = offset;
+        long unsynced = 0;
+        int lastProgress = -1;
+        long lastReport = 0;
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Copy interrupted");
+            }
+            int read = source.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            buffer.flip();
+            if (dataListener != null) {
+                dataListener.onData(buffer.asReadOnlyBuffer());
+            }
+            while (buffer.hasRemaining()) {
+                destination.write(buffer);
+            }
+            buffer.clear();
+            copied += read;
+
+            unsynced += read;
+            if (canSync && unsynced >= COPY_SYNC_INTERVAL) {
+                canSync = sync(destination);
+                unsynced = 0;
+            }
 
-        @Override
-        public int read(ByteBuffer bb) throws IOException {
-            int read;
-            if ((read = mReadableByteChannel.read(bb)) > 0) {
-                mSizeRead += read;
-                int progress = mSize > 0 ? Math.round(mSizeRead * 100.f / mSize) : -1;
-                if (mProgress != progress) {
-                    mCallback.update(progress);
-                    mProgress = progress;
+            if (progressCallBack != null && size > 0) {
+                int progress = (int) Math.min(100, copied * 100 / size);
+                long now = SystemClock.elapsedRealtime();
+                if (progress != lastProgress &&
+                        (progress == 100 || now - lastReport >= COPY_PROGRESS_INTERVAL_MS)) {
+                    progressCallBack.update(progress);
+                    lastProgress = progress;
+                    lastReport = now;
                 }
             }
-            return read;
+        }
+        if (canSync) {
+            sync(destination);
+        }
+        return copied;
+    }
+
+    /**
+     * Update a digest with the first bytes of a channel
+     *
+     * @param length the number of bytes to read, from the start of the channel
+     */
+    public static void updateDigest(FileChannel channel, long length, MessageDigest digest)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        long position = 0;
+        while (position < length) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Digest interrupted");
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    public static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return false if the channel can't be synced, e.g. because it's a pipe
+     */
+    private static boolean sync(FileChannel channel) {
+        try {
+            channel.force(false);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not sync, not syncing anymore", e);
+            return false;
         }
     }
 
     public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
             throws IOException {
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
-             FileChannel destChannel = new FileOutputStream(destFile).getChannel()) {
-            if (progressCallBack != null) {
-                ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
-                        sourceFile.length(), progressCallBack);
-                destChannel.transferFrom(readableByteChannel, 0, sourceChannel.size());
-            } else {
-                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+             FileOutputStream destStream = new FileOutputStream(destFile);
+             FileChannel destChannel = destStream.getChannel()) {
+            long size = sourceChannel.size();
+            try {
+                // Reserve the space at once, so that the file isn't fragmented
+                Os.posix_fallocate(destStream.getFD(), 0, size);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Could not allocate " + size + " bytes for " + destFile, e);
             }
+            copy(sourceChannel, destChannel, size, progressCallBack);
         } catch (IOException e) {
             Log.e(TAG, "Could not copy file", e);
             if (destFile.exists()) {
@@ -100,22 +214,54 @@ public class FileUtils {
         }
     }
 
-    public static void copyFile(ContentResolver cr, File sourceFile, Uri destUri,
-                                ProgressCallBack progressCallBack) throws IOException {
-        try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
-             ParcelFileDescriptor pfd = cr.openFileDescriptor(destUri, "w");
-             FileChannel destChannel = new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
-            if (progressCallBack != null) {
-                ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
-                        sourceFile.length(), progressCallBack);
-                destChannel.transferFrom(readableByteChannel, 0, sourceChannel.size());
-            } else {
-                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+    /**
+     * Identify the current content of a file without reading all of it. The
+     * fingerprint changes if the file is replaced or modified through the
+     * usual means, since it includes the inode, size and modification time,
+     * together with a hash of a few samples spread over the file.
+     *
+     * @return a string that identifies the file and its content
+     */
+    public static String computeFingerprint(File file) throws IOException {
+        StructStat stat;
+        try {
+            stat = Os.stat(file.getAbsolutePath());
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_SAMPLE_SIZE);
+            // The last sample covers the end of the file, where zip archives
+            // keep their central directory and signature
+            for (int i = 0; i <= FINGERPRINT_SAMPLES; i++) {
+                long position = i < FINGERPRINT_SAMPLES ? size / FINGERPRINT_SAMPLES * i :
+                        Math.max(0, size - FINGERPRINT_SAMPLE_SIZE);
+                buffer.clear();
+                int count;
+                while (buffer.hasRemaining() &&
+                        (count = channel.read(buffer, position + buffer.position())) > 0) {
+                    digest.update(buffer.array(), buffer.position() - count, count);
+                }
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Could not copy file", e);
-            throw e;
         }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(file.getAbsolutePath()).append('|')
+                .append(stat.st_size).append('|')
+                .append(stat.st_mtim.tv_sec).append('.').append(stat.st_mtim.tv_nsec).append('|')
+                .append(stat.st_dev).append(':').append(stat.st_ino).append('|');
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
     }
 
     public static String queryName(@NonNull ContentResolver resolver, Uri uri) {
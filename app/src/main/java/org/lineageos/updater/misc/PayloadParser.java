@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import org.lineageos.updater.model.PayloadInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the header and the manifest of payload.bin without touching the rest
+ * of the payload. Only the fields needed to describe the update are decoded,
+ * see update_engine/update_metadata.proto for the complete format.
+ */
+public final class PayloadParser {
+
+    private static final byte[] MAGIC = {'C', 'r', 'A', 'U'};
+    // Magic (4) + major version (8) + manifest size (8)
+    private static final int HEADER_SIZE_V1 = 20;
+    // Major version 2 also has the size of the metadata signature (4)
+    private static final int HEADER_SIZE_V2 = 24;
+    // The manifest is usually a few hundred KB, anything bigger is garbage
+    private static final long MAX_MANIFEST_SIZE = 64 * 1024 * 1024;
+
+    // Protobuf wire types
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    // DeltaArchiveManifest
+    private static final int MANIFEST_MINOR_VERSION = 12;
+    private static final int MANIFEST_PARTITIONS = 13;
+    private static final int MANIFEST_MAX_TIMESTAMP = 14;
+
+    // PartitionUpdate
+    private static final int PARTITION_NAME = 1;
+    private static final int PARTITION_OLD_INFO = 6;
+    private static final int PARTITION_NEW_INFO = 7;
+
+    // PartitionInfo
+    private static final int PARTITION_INFO_SIZE = 1;
+
+    // Minor version used by update_engine for full payloads
+    private static final int FULL_PAYLOAD_MINOR_VERSION = 0;
+
+    private PayloadParser() {
+    }
+
+    /**
+     * Parse the payload stored in the given file at the given offset.
+     *
+     * @param file the update package, or the payload itself
+     * @param payloadOffset the offset of the payload inside the file
+     * @return the summary of the payload manifest
+     * @throws IOException if the file can't be read or the payload is malformed
+     */
+    public static PayloadInfo parse(File file, long payloadOffset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long available = channel.size() - payloadOffset;
+            if (payloadOffset < 0 || available < HEADER_SIZE_V2) {
+                throw new IOException("Payload header out of bounds");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, payloadOffset,
+                    HEADER_SIZE_V2).order(ByteOrder.BIG_ENDIAN);
+            long version = parseHeaderVersion(header);
+            long manifestSize = header.getLong(12);
+            int headerSize = version >= 2 ? HEADER_SIZE_V2 : HEADER_SIZE_V1;
+            if (manifestSize <= 0 || manifestSize > MAX_MANIFEST_SIZE ||
+                    manifestSize > available - headerSize) {
+                throw new IOException("Invalid manifest size " + manifestSize);
+            }
+            ByteBuffer manifest = channel.map(FileChannel.MapMode.READ_ONLY,
+                    payloadOffset + headerSize, manifestSize);
+            return parseManifest(version, manifest);
+        }
+    }
+
+    private static long parseHeaderVersion(ByteBuffer header) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) {
+                throw new IOException("Not an update_engine payload");
+            }
+        }
+        long version = header.getLong(4);
+        if (version != 1 && version != 2) {
+            throw new IOException("Unsupported payload version " + version);
+        }
+        return version;
+    }
+
+    private static PayloadInfo parseManifest(long version, ByteBuffer manifest)
+            throws IOException {
+        int minorVersion = FULL_PAYLOAD_MINOR_VERSION;
+        long maxTimestamp = 0;
+        long totalWriteSize = 0;
+        boolean hasOldPartitionInfo = false;
+        List<String> partitions = new ArrayList<>();
+
+        ProtoReader reader = new ProtoReader(manifest);
+        while (reader.hasNext()) {
+            int tag = reader.readTag();
+            int field = tag >>> 3;
+            if (field == MANIFEST_MINOR_VERSION && (tag & 7) == WIRE_VARINT) {
+                minorVersion = (int) reader.readVarint();
+            } else if (field == MANIFEST_MAX_TIMESTAMP && (tag & 7) == WIRE_VARINT) {
+                maxTimestamp = reader.readVarint();
+            } else if (field == MANIFEST_PARTITIONS && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+                ProtoReader partition = reader.readMessage();
+                String name = null;
+                while (partition.hasNext()) {
+                    int partitionTag = partition.readTag();
+                    int partitionField = partitionTag >>> 3;
+                    if (partitionField == PARTITION_NAME &&
+                            (partitionTag & 7) == WIRE_LENGTH_DELIMITED) {
+                        name = partition.readString();
+                    } else if (partitionField == PARTITION_OLD_INFO &&
+                            (partitionTag & 7) == WIRE_LENGTH_DELIMITED) {
+                        partition.skip(partitionTag);
+                        hasOldPartitionInfo = true;
+                    } else if (partitionField == PARTITION_NEW_INFO &&
+                            (partitionTag & 7) == WIRE_LENGTH_DELIMITED) {
+                        totalWriteSize += readPartitionSize(partition.readMessage());
+                    } else {
+                        partition.skip(partitionTag);
+                    }
+                }
+                if (name != null) {
+                    partitions.add(name);
+                }
+            } else {
+                reader.skip(tag);
+            }
+        }
+
+        boolean isIncremental = minorVersion != FULL_PAYLOAD_MINOR_VERSION ||
+                hasOldPartitionInfo;
+        return new PayloadInfo(version, minorVersion, partitions, totalWriteSize,
+                isIncremental, maxTimestamp);
+    }
+
+    private static long readPartitionSize(ProtoReader partitionInfo) throws IOException {
+        long size = 0;
+        while (partitionInfo.hasNext()) {
+            int tag = partitionInfo.readTag();
+            if ((tag >>> 3) == PARTITION_INFO_SIZE && (tag & 7) == WIRE_VARINT) {
+                size = partitionInfo.readVarint();
+            } else {
+                partitionInfo.skip(tag);
+            }
+        }
+        return size;
+    }
+
+    private static class ProtoReader {
+        private final ByteBuffer mBuffer;
+
+        private ProtoReader(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        boolean hasNext() {
+            return mBuffer.hasRemaining();
+        }
+
+        int readTag() throws IOException {
+            return (int) readVarint();
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (!mBuffer.hasRemaining()) {
+                    throw new IOException("Truncated varint");
+                }
+                byte b = mBuffer.get();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private int readLength() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > mBuffer.remaining()) {
+                throw new IOException("Invalid length " + length);
+            }
+            return (int) length;
+        }
+
+        ProtoReader readMessage() throws IOException {
+            int length = readLength();
+            ByteBuffer message = mBuffer.slice();
+            message.limit(length);
+            mBuffer.position(mBuffer.position() + length);
+            return new ProtoReader(message);
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            byte[] bytes = new byte[length];
+            mBuffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void skip(int tag) throws IOException {
+            switch (tag & 7) {
+                case WIRE_VARINT:
+                    readVarint();
+                    break;
+                case WIRE_FIXED64:
+                    skipBytes(8);
+                    break;
+                case WIRE_LENGTH_DELIMITED:
+                    skipBytes(readLength());
+                    break;
+                case WIRE_FIXED32:
+                    skipBytes(4);
+                    break;
+                default:
+                    throw new IOException("Unsupported wire type " + (tag & 7));
+            }
+        }
+
+        private void skipBytes(int count) throws IOException {
+            if (count > mBuffer.remaining()) {
+                throw new IOException("Truncated field");
+            }
+            mBuffer.position(mBuffer.position() + count);
+        }
+    }
+}
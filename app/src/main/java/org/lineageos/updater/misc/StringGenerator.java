@@ -17,36 +17,67 @@ package org.lineageos.updater.misc;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.os.LocaleList;
 
 import org.lineageos.updater.R;
 
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 
 public final class StringGenerator {
 
+    private static final int FORMAT_TIME = 0;
+    private static final int FORMAT_DATE = 1 << 4;
+    private static final int FORMAT_DATE_UTC = 2 << 4;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    // Creating formatters is expensive, they are kept until the locales change.
+    // Keyed by the format type and style, all guarded by the class lock.
+    private static final Map<Integer, DateFormat> sFormats = new HashMap<>();
+    private static final Date sDate = new Date();
+    private static LocaleList sLocales;
+    private static Locale sLocale;
+
     private StringGenerator() {
     }
 
     public static String getTimeLocalized(Context context, long unixTimestamp) {
-        DateFormat f = DateFormat.getTimeInstance(DateFormat.SHORT, getCurrentLocale(context));
-        Date date = new Date(unixTimestamp * 1000);
-        return f.format(date);
+        return format(context, FORMAT_TIME, DateFormat.SHORT, unixTimestamp);
     }
 
     public static String getDateLocalized(Context context, int dateFormat, long unixTimestamp) {
-        DateFormat f = DateFormat.getDateInstance(dateFormat, getCurrentLocale(context));
-        Date date = new Date(unixTimestamp * 1000);
-        return f.format(date);
+        return format(context, FORMAT_DATE, dateFormat, unixTimestamp);
     }
 
     public static String getDateLocalizedUTC(Context context, int dateFormat, long unixTimestamp) {
-        DateFormat f = DateFormat.getDateInstance(dateFormat, getCurrentLocale(context));
-        f.setTimeZone(TimeZone.getTimeZone("UTC"));
-        Date date = new Date(unixTimestamp * 1000);
-        return f.format(date);
+        return format(context, FORMAT_DATE_UTC, dateFormat, unixTimestamp);
+    }
+
+    private static synchronized String format(Context context, int type, int style,
+            long unixTimestamp) {
+        Locale locale = getCurrentLocale(context);
+        Integer key = type | style;
+        DateFormat f = sFormats.get(key);
+        if (f == null) {
+            f = type == FORMAT_TIME ?
+                    DateFormat.getTimeInstance(style, locale) :
+                    DateFormat.getDateInstance(style, locale);
+            if (type == FORMAT_DATE_UTC) {
+                f.setTimeZone(UTC);
+            }
+            sFormats.put(key, f);
+        }
+        if (type != FORMAT_DATE_UTC) {
+            // The time zone can change at any time, it's not part of the configuration
+            f.setTimeZone(TimeZone.getDefault());
+        }
+        sDate.setTime(unixTimestamp * 1000);
+        return f.format(sDate);
     }
 
     public static String formatETA(Context context, long millis) {
@@ -66,8 +97,14 @@ public final class StringGenerator {
         }
     }
 
-    public static Locale getCurrentLocale(Context context) {
-        return context.getResources().getConfiguration().getLocales()
-                .getFirstMatch(context.getResources().getAssets().getLocales());
+    public static synchronized Locale getCurrentLocale(Context context) {
+        LocaleList locales = context.getResources().getConfiguration().getLocales();
+        if (!locales.equals(sLocales)) {
+            // The configuration changed, the cached formatters use the old locale
+            sLocale = locales.getFirstMatch(context.getResources().getAssets().getLocales());
+            sLocales = locales;
+            sFormats.clear();
+        }
+        return sLocale;
     }
 }
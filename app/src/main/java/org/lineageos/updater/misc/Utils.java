@@ -27,6 +27,7 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
+import android.provider.Settings;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -38,20 +39,26 @@ import org.json.JSONObject;
 import org.lineageos.updater.R;
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.controller.UpdaterService;
+import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.model.PackageMetadata;
+import org.lineageos.updater.model.PayloadInfo;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateBaseInfo;
 import org.lineageos.updater.model.UpdateInfo;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
+import java.util.Map;
+import java.util.UUID;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -77,8 +84,12 @@ public class Utils {
         return dir;
     }
 
-    public static File getCachedUpdateList(Context context) {
-        return new File(context.getCacheDir(), "updates.json");
+    /**
+     * @return a new file to download the list of updates to, it should be
+     * deleted once merged into the catalog
+     */
+    public static File getUpdateListTempFile(Context context) {
+        return new File(context.getCacheDir(), "updates.json" + UUID.randomUUID());
     }
 
     // This should really return an UpdateBaseInfo object, but currently this only
@@ -92,6 +103,8 @@ public class Utils {
         update.setFileSize(object.getLong("size"));
         update.setDownloadUrl(object.getString("url"));
         update.setVersion(object.getString("version"));
+        update.setChunkManifestUrl(object.isNull("chunk_manifest") ? null :
+                object.getString("chunk_manifest"));
         return update;
     }
 
@@ -112,6 +125,56 @@ public class Utils {
         return true;
     }
 
+    /**
+     * Check the preconditions declared by an update package against the running build
+     *
+     * @param packageMetadata the metadata of the package
+     * @param payloadInfo the manifest of the payload, or null if not known
+     * @return false if the package is known not to be installable on this build
+     */
+    public static boolean isPackageCompatible(PackageMetadata packageMetadata,
+            PayloadInfo payloadInfo) {
+        String preDevice = packageMetadata.getMetadata(PackageMetadata.KEY_PRE_DEVICE);
+        if (preDevice != null && !matchesAny(preDevice,
+                SystemProperties.get(Constants.PROP_PRODUCT_DEVICE),
+                SystemProperties.get(Constants.PROP_DEVICE))) {
+            Log.d(TAG, "Package is for " + preDevice);
+            return false;
+        }
+
+        boolean isIncremental = payloadInfo != null ? payloadInfo.isIncremental() :
+                packageMetadata.getMetadata(PackageMetadata.KEY_PRE_BUILD) != null;
+        if (!isIncremental) {
+            return true;
+        }
+        String preBuildIncremental =
+                packageMetadata.getMetadata(PackageMetadata.KEY_PRE_BUILD_INCREMENTAL);
+        if (preBuildIncremental != null && !matchesAny(preBuildIncremental,
+                SystemProperties.get(Constants.PROP_BUILD_VERSION_INCREMENTAL))) {
+            Log.d(TAG, "Incremental package for " + preBuildIncremental);
+            return false;
+        }
+        String preBuild = packageMetadata.getMetadata(PackageMetadata.KEY_PRE_BUILD);
+        if (preBuild != null && !matchesAny(preBuild,
+                SystemProperties.get(Constants.PROP_BUILD_FINGERPRINT))) {
+            Log.d(TAG, "Incremental package for " + preBuild);
+            return false;
+        }
+        return true;
+    }
+
+    // Multiple values are separated by '|' in the package metadata
+    private static boolean matchesAny(String values, String... candidates) {
+        for (String value : values.split("\\|")) {
+            for (String candidate : candidates) {
+                if (!candidate.isEmpty() && candidate.equals(value.trim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public static boolean canInstall(UpdateBaseInfo update) {
         return (SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false) ||
                 update.getTimestamp() > SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) &&
@@ -208,24 +271,32 @@ public class Utils {
     }
 
     /**
-     * Compares two json formatted updates list files
+     * Merge a list downloaded from the server into the catalog
      *
-     * @param oldJson old update list
-     * @param newJson new update list
-     * @return true if newJson has at least a compatible update not available in oldJson
+     * @return the updates that weren't in the catalog before
      */
-    public static boolean checkForNewUpdates(File oldJson, File newJson)
+    public static List<UpdateInfo> updateCatalog(Context context, File json)
             throws IOException, JSONException {
-        List<UpdateInfo> oldList = parseJson(oldJson, true);
-        List<UpdateInfo> newList = parseJson(newJson, true);
-        Set<String> oldIds = new HashSet<>();
-        for (UpdateInfo update : oldList) {
-            oldIds.add(update.getDownloadId());
-        }
-        // In case of no new updates, the old list should
-        // have all (if not more) the updates
-        for (UpdateInfo update : newList) {
-            if (!oldIds.contains(update.getDownloadId())) {
+        return UpdatesDbHelper.getInstance(context).mergeCatalog(parseJson(json, false));
+    }
+
+    /**
+     * @return the updates in the catalog that can be installed, newest first
+     */
+    public static List<UpdateInfo> getCompatibleCatalog(Context context) {
+        List<UpdateInfo> updates = new ArrayList<>();
+        String type = SystemProperties.get(Constants.PROP_RELEASE_TYPE);
+        for (UpdateInfo update : UpdatesDbHelper.getInstance(context).getCatalog(type)) {
+            if (isCompatible(update)) {
+                updates.add(update);
+            }
+        }
+        return updates;
+    }
+
+    public static boolean checkForNewUpdates(List<UpdateInfo> addedUpdates) {
+        for (UpdateInfo update : addedUpdates) {
+            if (isCompatible(update)) {
                 return true;
             }
         }
@@ -291,7 +362,13 @@ public class Utils {
         String lastUpdatePath = preferences.getString(Constants.PREF_INSTALL_PACKAGE_PATH, null);
         boolean reinstalling = preferences.getBoolean(Constants.PREF_INSTALL_AGAIN, false);
         boolean deleteUpdates = preferences.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false);
-        if ((buildTimestamp != prevTimestamp || reinstalling) && deleteUpdates &&
+        // A package given to uncrypt without a copy can't be read after rebooting
+        int uncryptBootCount = preferences.getInt(Constants.PREF_INSTALL_UNCRYPT_BOOT_COUNT, -1);
+        boolean uncrypted = uncryptBootCount >= 0 && uncryptBootCount != getBootCount(context);
+        if (uncrypted) {
+            preferences.edit().remove(Constants.PREF_INSTALL_UNCRYPT_BOOT_COUNT).apply();
+        }
+        if (((buildTimestamp != prevTimestamp || reinstalling) && deleteUpdates || uncrypted) &&
                 lastUpdatePath != null) {
             File lastUpdate = new File(lastUpdatePath);
             if (lastUpdate.exists()) {
@@ -317,7 +394,7 @@ public class Utils {
         }
 
         // Ideally the database is empty when we get here
-        UpdatesDbHelper dbHelper = new UpdatesDbHelper(context);
+        UpdatesDbHelper dbHelper = UpdatesDbHelper.getInstance(context);
         List<String> knownPaths = new ArrayList<>();
         for (UpdateInfo update : dbHelper.getUpdates()) {
             knownPaths.add(update.getFile().getAbsolutePath());
@@ -347,7 +424,7 @@ public class Utils {
         final File parent = file.getParentFile();
         for (int i = 1; i < Integer.MAX_VALUE; i++) {
             File newFile = new File(parent, name + "-" + i + extension);
-            if (!newFile.exists()) {
+            if (!newFile.exists() && !DownloadClient.getTailFile(newFile).exists()) {
                 return newFile;
             }
         }
@@ -370,6 +447,106 @@ public class Utils {
         return isAB;
     }
 
+    public static boolean isABUpdate(UpdateInfo update) throws IOException {
+        PackageMetadata packageMetadata = update.getPackageMetadata();
+        if (packageMetadata != null) {
+            return packageMetadata.isABUpdate();
+        }
+        return isABUpdate(update.getFile());
+    }
+
+    /**
+     * Read everything needed to install the given package with a single pass
+     * over its entries, so that the package doesn't need to be opened again.
+     *
+     * @param file the update package
+     * @return the metadata of the package
+     * @throws IOException if the package can't be read
+     */
+    public static PackageMetadata readPackageMetadata(File file) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file)) {
+            boolean isAB = isABUpdate(zipFile);
+            long payloadOffset = -1;
+            long payloadSize = -1;
+            String[] payloadProperties = null;
+            if (isAB) {
+                payloadOffset = getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
+                payloadSize = zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH).getCompressedSize();
+                payloadProperties = PackageMetadata.parsePayloadProperties(
+                        readZipEntry(zipFile, Constants.AB_PAYLOAD_PROPERTIES_PATH));
+            }
+            Map<String, String> metadata = PackageMetadata.parseMetadata(
+                    readZipEntry(zipFile, Constants.METADATA_PATH));
+            return new PackageMetadata(isAB, payloadOffset, payloadSize, payloadProperties,
+                    metadata);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Could not read the metadata of " + file, e);
+        }
+    }
+
+    /**
+     * Read the metadata of a package from its last bytes, as available early
+     * during tail-first downloads. The offset of the payload isn't known
+     * since it requires the local header at the beginning of the package.
+     *
+     * @param tail the last bytes of the package
+     * @param tailOffset the offset of the tail in the package
+     * @param length the size of the package
+     * @return the reader of the package, to access the entries in the tail
+     * @throws IOException if the tail doesn't have the central directory
+     */
+    public static ZipArchiveReader openPackageTail(byte[] tail, long tailOffset, long length)
+            throws IOException {
+        return ZipArchiveReader.open(ZipArchiveReader.sourceOf(tail, tailOffset, length));
+    }
+
+    /**
+     * Read the metadata of a package, leaving the offset of the payload unknown
+     *
+     * @see #openPackageTail(byte[], long, long)
+     */
+    public static PackageMetadata readPartialPackageMetadata(ZipArchiveReader zip)
+            throws IOException {
+        ZipArchiveReader.Entry payload = zip.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+        ZipArchiveReader.Entry payloadProperties =
+                zip.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+        boolean isAB = payload != null && payloadProperties != null;
+        long payloadSize = -1;
+        String[] properties = null;
+        if (isAB) {
+            payloadSize = payload.getCompressedSize();
+            properties = PackageMetadata.parsePayloadProperties(
+                    readZipEntry(zip, payloadProperties));
+        }
+        Map<String, String> metadata = PackageMetadata.parseMetadata(
+                readZipEntry(zip, zip.getEntry(Constants.METADATA_PATH)));
+        return new PackageMetadata(isAB, -1, payloadSize, properties, metadata);
+    }
+
+    private static String readZipEntry(ZipArchiveReader zip, ZipArchiveReader.Entry entry)
+            throws IOException {
+        if (entry == null) {
+            return null;
+        }
+        return new String(zip.readEntry(entry), StandardCharsets.UTF_8).trim();
+    }
+
+    private static String readZipEntry(ZipFile zipFile, String entryPath) throws IOException {
+        ZipEntry entry = zipFile.getEntry(entryPath);
+        if (entry == null) {
+            return null;
+        }
+        try (InputStream is = zipFile.getInputStream(entry);
+             ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                os.write(buffer, 0, read);
+            }
+            return os.toString(StandardCharsets.UTF_8.name()).trim();
+        }
+    }
+
     public static boolean hasTouchscreen(Context context) {
         return context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_TOUCHSCREEN);
     }
@@ -388,6 +565,11 @@ public class Utils {
         return sm.isEncrypted(file);
     }
 
+    public static int getBootCount(Context context) {
+        return Settings.Global.getInt(context.getContentResolver(),
+                Settings.Global.BOOT_COUNT, 0);
+    }
+
     public static int getUpdateCheckSetting(Context context) {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
         return preferences.getInt(Constants.PREF_AUTO_UPDATES_CHECK_INTERVAL,
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal zip reader that only needs random access to a few small ranges of
+ * the archive: the end of central directory record, the central directory and
+ * the entries that are actually read. This allows to inspect packages that are
+ * remote or only partially downloaded.
+ */
+public final class ZipArchiveReader {
+
+    /**
+     * Random access to the bytes of an archive.
+     */
+    public interface Source {
+        long length() throws IOException;
+
+        byte[] read(long offset, int length) throws IOException;
+    }
+
+    /**
+     * @return a source that only has the given bytes of an archive, reading
+     *         any other range fails
+     */
+    public static Source sourceOf(final byte[] data, final long dataOffset, final long length) {
+        return new Source() {
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public byte[] read(long offset, int count) throws IOException {
+                if (offset < dataOffset || offset + count > dataOffset + data.length) {
+                    throw new IOException("Range " + offset + "+" + count + " not available");
+                }
+                byte[] result = new byte[count];
+                System.arraycopy(data, (int) (offset - dataOffset), result, 0, count);
+                return result;
+            }
+        };
+    }
+
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mUncompressedSize;
+        private final long mLocalHeaderOffset;
+        private final int mExtraLength;
+
+        private Entry(String name, int method, long compressedSize, long uncompressedSize,
+                long localHeaderOffset, int extraLength) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mUncompressedSize = uncompressedSize;
+            mLocalHeaderOffset = localHeaderOffset;
+            mExtraLength = extraLength;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getUncompressedSize() {
+            return mUncompressedSize;
+        }
+
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+    }
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    // Extra bytes read together with the local header, so that small entries
+    // usually need a single request
+    private static final int LOCAL_HEADER_SLACK = 1024;
+
+    private final Source mSource;
+    private final long mLength;
+    private final long mCentralDirectoryOffset;
+    private final byte[] mComment;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private ZipArchiveReader(Source source, long length, long centralDirectoryOffset,
+            byte[] comment) {
+        mSource = source;
+        mLength = length;
+        mCentralDirectoryOffset = centralDirectoryOffset;
+        mComment = comment;
+    }
+
+    /**
+     * Read the central directory of the archive
+     *
+     * @param source the archive
+     * @return a reader for the entries of the archive
+     * @throws IOException if the archive can't be read or is malformed
+     */
+    public static ZipArchiveReader open(Source source) throws IOException {
+        long length = source.length();
+        int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        long tailOffset = length - tailSize;
+        return open(source, length, source.read(tailOffset, tailSize), tailOffset);
+    }
+
+    /**
+     * Read the central directory of the archive, given the last bytes of the archive
+     *
+     * @param source the archive, only used if the tail doesn't contain the central directory
+     * @param length the total length of the archive
+     * @param tail the last bytes of the archive
+     * @param tailOffset the offset of the tail in the archive
+     * @return a reader for the entries of the archive
+     * @throws IOException if the archive can't be read or is malformed
+     */
+    public static ZipArchiveReader open(Source source, long length, byte[] tail, long tailOffset)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = findEocd(buffer);
+        if (eocd < 0) {
+            throw new IOException("End of central directory not found");
+        }
+
+        long entries = buffer.getShort(eocd + 10) & 0xffff;
+        long centralDirectorySize = buffer.getInt(eocd + 12) & ZIP64_MAGIC;
+        long centralDirectoryOffset = buffer.getInt(eocd + 16) & ZIP64_MAGIC;
+        int commentLength = buffer.getShort(eocd + 20) & 0xffff;
+        byte[] comment = new byte[commentLength];
+        buffer.position(eocd + EOCD_SIZE);
+        buffer.get(comment);
+
+        int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locator >= 0 && buffer.getInt(locator) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+            long zip64EocdOffset = buffer.getLong(locator + 8);
+            ByteBuffer zip64Eocd = slice(source, tail, tailOffset, zip64EocdOffset,
+                    ZIP64_EOCD_SIZE);
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Invalid zip64 end of central directory");
+            }
+            entries = zip64Eocd.getLong(32);
+            centralDirectorySize = zip64Eocd.getLong(40);
+            centralDirectoryOffset = zip64Eocd.getLong(48);
+        }
+
+        if (centralDirectorySize > Integer.MAX_VALUE ||
+                centralDirectoryOffset + centralDirectorySize > length) {
+            throw new IOException("Invalid central directory");
+        }
+        ZipArchiveReader reader = new ZipArchiveReader(source, length, centralDirectoryOffset,
+                comment);
+        ByteBuffer centralDirectory = slice(source, tail, tailOffset, centralDirectoryOffset,
+                (int) centralDirectorySize);
+        for (long i = 0; i < entries; i++) {
+            reader.readCentralDirectoryEntry(centralDirectory);
+        }
+        return reader;
+    }
+
+    private static int findEocd(ByteBuffer buffer) {
+        for (int i = buffer.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (buffer.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + (buffer.getShort(i + 20) & 0xffff) == buffer.limit()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer slice(Source source, byte[] tail, long tailOffset, long offset,
+            int length) throws IOException {
+        if (offset >= tailOffset && offset + length <= tailOffset + tail.length) {
+            return ByteBuffer.wrap(tail, (int) (offset - tailOffset), length).slice()
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (source == null) {
+            throw new IOException("Range " + offset + "+" + length + " not available");
+        }
+        return ByteBuffer.wrap(source.read(offset, length)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void readCentralDirectoryEntry(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < CENTRAL_HEADER_SIZE ||
+                buffer.getInt(buffer.position()) != CENTRAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid central directory entry");
+        }
+        int start = buffer.position();
+        int method = buffer.getShort(start + 10) & 0xffff;
+        long compressedSize = buffer.getInt(start + 20) & ZIP64_MAGIC;
+        long uncompressedSize = buffer.getInt(start + 24) & ZIP64_MAGIC;
+        int nameLength = buffer.getShort(start + 28) & 0xffff;
+        int extraLength = buffer.getShort(start + 30) & 0xffff;
+        int commentLength = buffer.getShort(start + 32) & 0xffff;
+        long localHeaderOffset = buffer.getInt(start + 42) & ZIP64_MAGIC;
+        if (buffer.remaining() < CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength) {
+            throw new IOException("Truncated central directory entry");
+        }
+
+        byte[] name = new byte[nameLength];
+        buffer.position(start + CENTRAL_HEADER_SIZE);
+        buffer.get(name);
+
+        // The zip64 extra field only has the values that didn't fit in the header
+        int extra = start + CENTRAL_HEADER_SIZE + nameLength;
+        int extraEnd = extra + extraLength;
+        while (extra + 4 <= extraEnd) {
+            int id = buffer.getShort(extra) & 0xffff;
+            int size = buffer.getShort(extra + 2) & 0xffff;
+            if (id == ZIP64_EXTRA_ID) {
+                int field = extra + 4;
+                if (uncompressedSize == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                    uncompressedSize = buffer.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                    compressedSize = buffer.getLong(field);
+                    field += 8;
+                }
+                if (localHeaderOffset == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                    localHeaderOffset = buffer.getLong(field);
+                }
+                break;
+            }
+            extra += 4 + size;
+        }
+
+        buffer.position(start + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength);
+        String entryName = new String(name, StandardCharsets.UTF_8);
+        mEntries.put(entryName, new Entry(entryName, method, compressedSize, uncompressedSize,
+                localHeaderOffset, extraLength));
+    }
+
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public long getCentralDirectoryOffset() {
+        return mCentralDirectoryOffset;
+    }
+
+    public byte[] getComment() {
+        return mComment.clone();
+    }
+
+    /**
+     * Check whether the archive ends with the footer of a whole-file signature,
+     * as required by RecoverySystem.verifyPackage()
+     */
+    public boolean hasSignatureFooter() {
+        int length = mComment.length;
+        if (length < 6) {
+            return false;
+        }
+        ByteBuffer footer = ByteBuffer.wrap(mComment, length - 6, 6)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int signatureStart = footer.getShort(length - 6) & 0xffff;
+        int marker = footer.getShort(length - 4) & 0xffff;
+        int commentSize = footer.getShort(length - 2) & 0xffff;
+        return marker == 0xffff && commentSize == length && signatureStart <= commentSize;
+    }
+
+    /**
+     * Read and decompress the content of the given entry
+     */
+    public byte[] readEntry(Entry entry) throws IOException {
+        if (entry.mUncompressedSize > Integer.MAX_VALUE ||
+                entry.mCompressedSize > Integer.MAX_VALUE) {
+            throw new IOException(entry.mName + " is too big");
+        }
+        // Guess the size of the local header from the central directory, the
+        // data is then usually available without a second request
+        long guess = LOCAL_HEADER_SIZE + entry.mName.length() + entry.mExtraLength +
+                entry.mCompressedSize + LOCAL_HEADER_SLACK;
+        int length = (int) Math.min(guess, mLength - entry.mLocalHeaderOffset);
+        byte[] chunk = mSource.read(entry.mLocalHeaderOffset, length);
+        int headerSize = parseLocalHeaderSize(chunk);
+        byte[] data;
+        if (headerSize + entry.mCompressedSize <= chunk.length) {
+            data = new byte[(int) entry.mCompressedSize];
+            System.arraycopy(chunk, headerSize, data, 0, data.length);
+        } else {
+            data = mSource.read(entry.mLocalHeaderOffset + headerSize,
+                    (int) entry.mCompressedSize);
+        }
+
+        if (entry.mMethod == METHOD_STORED) {
+            return data;
+        } else if (entry.mMethod != METHOD_DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.mMethod);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] content = new byte[(int) entry.mUncompressedSize];
+            int read = 0;
+            while (read < content.length && !inflater.finished()) {
+                int count = inflater.inflate(content, read, content.length - read);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != content.length) {
+                throw new IOException("Truncated entry " + entry.mName);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Could not inflate " + entry.mName, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int parseLocalHeaderSize(byte[] header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.length < LOCAL_HEADER_SIZE || buffer.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header");
+        }
+        int nameLength = buffer.getShort(26) & 0xffff;
+        int extraLength = buffer.getShort(28) & 0xffff;
+        return LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+}
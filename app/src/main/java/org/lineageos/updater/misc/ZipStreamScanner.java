@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import org.lineageos.updater.model.PackageMetadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the metadata of an update package from its local headers while the
+ * package is being streamed, so that it's known as soon as the last byte is
+ * read, without going back to the archive.
+ *
+ * The scan stops at entries whose size is only given after their data, which
+ * can't be skipped without inflating them. The metadata is then unknown and has
+ * to be read from the central directory instead.
+ */
+public final class ZipStreamScanner implements FileUtils.DataListener {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    // The metadata entries are small, don't buffer anything big by mistake
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private enum State {
+        HEADER,
+        NAME_AND_EXTRA,
+        DATA,
+        DONE,
+    }
+
+    private State mState = State.HEADER;
+    private boolean mComplete;
+    private long mPosition;
+
+    // The part of the header or entry being buffered
+    private byte[] mPending = new byte[LOCAL_HEADER_SIZE];
+    private int mPendingSize;
+    private long mSkip;
+
+    private int mMethod;
+    private long mCompressedSize;
+    private long mUncompressedSize;
+    private int mNameLength;
+    private String mEntryName;
+
+    private long mPayloadOffset = -1;
+    private long mPayloadSize = -1;
+    private String mPayloadProperties;
+    private String mMetadata;
+
+    @Override
+    public void onData(ByteBuffer data) throws IOException {
+        while (data.hasRemaining() && mState != State.DONE) {
+            if (mSkip > 0) {
+                int count = (int) Math.min(mSkip, data.remaining());
+                data.position(data.position() + count);
+                mPosition += count;
+                mSkip -= count;
+                if (mSkip == 0) {
+                    startHeader();
+                }
+                continue;
+            }
+
+            int count = Math.min(mPending.length - mPendingSize, data.remaining());
+            data.get(mPending, mPendingSize, count);
+            mPendingSize += count;
+            mPosition += count;
+            if (mPendingSize < mPending.length) {
+                continue;
+            }
+
+            switch (mState) {
+                case HEADER:
+                    onHeader();
+                    break;
+                case NAME_AND_EXTRA:
+                    onNameAndExtra();
+                    break;
+                case DATA:
+                    onEntryData();
+                    startHeader();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the metadata of the package, or null if the scan didn't reach the
+     *         central directory
+     */
+    public PackageMetadata getPackageMetadata() {
+        if (!mComplete || mMetadata == null) {
+            return null;
+        }
+        boolean isAB = mPayloadOffset >= 0 && mPayloadProperties != null;
+        Map<String, String> metadata = PackageMetadata.parseMetadata(mMetadata);
+        return new PackageMetadata(isAB, isAB ? mPayloadOffset : -1, isAB ? mPayloadSize : -1,
+                isAB ? PackageMetadata.parsePayloadProperties(mPayloadProperties) : null,
+                metadata);
+    }
+
+    private void startHeader() {
+        if (mState == State.DONE) {
+            return;
+        }
+        mState = State.HEADER;
+        mPending = new byte[LOCAL_HEADER_SIZE];
+        mPendingSize = 0;
+    }
+
+    private void onHeader() {
+        ByteBuffer header = ByteBuffer.wrap(mPending).order(ByteOrder.LITTLE_ENDIAN);
+        int signature = header.getInt(0);
+        if (signature != LOCAL_HEADER_SIGNATURE) {
+            // All the entries were seen once the central directory starts
+            mComplete = signature == CENTRAL_HEADER_SIGNATURE;
+            mState = State.DONE;
+            return;
+        }
+        int flags = header.getShort(6) & 0xffff;
+        mMethod = header.getShort(8) & 0xffff;
+        mCompressedSize = header.getInt(18) & ZIP64_MAGIC;
+        mUncompressedSize = header.getInt(22) & ZIP64_MAGIC;
+        mNameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        if ((flags & FLAG_DATA_DESCRIPTOR) != 0 && mCompressedSize == 0) {
+            // The size comes after the data, the end of the entry can't be found
+            mState = State.DONE;
+            return;
+        }
+        mState = State.NAME_AND_EXTRA;
+        mPending = new byte[mNameLength + extraLength];
+        mPendingSize = 0;
+        if (mPending.length == 0) {
+            onNameAndExtra();
+        }
+    }
+
+    private void onNameAndExtra() {
+        ByteBuffer buffer = ByteBuffer.wrap(mPending).order(ByteOrder.LITTLE_ENDIAN);
+        mEntryName = new String(mPending, 0, mNameLength, StandardCharsets.UTF_8);
+
+        // The zip64 extra field only has the values that didn't fit in the header
+        int extra = mNameLength;
+        while (extra + 4 <= mPending.length) {
+            int id = buffer.getShort(extra) & 0xffff;
+            int size = buffer.getShort(extra + 2) & 0xffff;
+            if (id == ZIP64_EXTRA_ID) {
+                int field = extra + 4;
+                if (mUncompressedSize == ZIP64_MAGIC && field + 8 <= mPending.length) {
+                    mUncompressedSize = buffer.getLong(field);
+                    field += 8;
+                }
+                if (mCompressedSize == ZIP64_MAGIC && field + 8 <= mPending.length) {
+                    mCompressedSize = buffer.getLong(field);
+                }
+                break;
+            }
+            extra += 4 + size;
+        }
+
+        if (Constants.AB_PAYLOAD_BIN_PATH.equals(mEntryName)) {
+            mPayloadOffset = mPosition;
+            mPayloadSize = mCompressedSize;
+        } else if ((Constants.METADATA_PATH.equals(mEntryName) ||
+                Constants.AB_PAYLOAD_PROPERTIES_PATH.equals(mEntryName)) &&
+                mCompressedSize <= MAX_ENTRY_SIZE && mUncompressedSize <= MAX_ENTRY_SIZE) {
+            mState = State.DATA;
+            mPending = new byte[(int) mCompressedSize];
+            mPendingSize = 0;
+            if (mPending.length == 0) {
+                onEntryData();
+                startHeader();
+            }
+            return;
+        }
+        mSkip = mCompressedSize;
+        if (mSkip == 0) {
+            startHeader();
+        }
+    }
+
+    private void onEntryData() {
+        String content;
+        try {
+            content = new String(decompress(), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            // Left to the central directory
+            mState = State.DONE;
+            return;
+        }
+        if (Constants.METADATA_PATH.equals(mEntryName)) {
+            mMetadata = content;
+        } else {
+            mPayloadProperties = content;
+        }
+    }
+
+    private byte[] decompress() throws IOException {
+        if (mMethod == METHOD_STORED) {
+            return mPending;
+        } else if (mMethod != METHOD_DEFLATED) {
+            throw new IOException("Unsupported compression method " + mMethod);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(mPending);
+            byte[] content = new byte[(int) mUncompressedSize];
+            int read = 0;
+            while (read < content.length && !inflater.finished()) {
+                int count = inflater.inflate(content, read, content.length - read);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != content.length) {
+                throw new IOException("Truncated entry " + mEntryName);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Could not inflate " + mEntryName, e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Information extracted from an update package, so that the package doesn't
+ * need to be opened again to install it.
+ */
+public final class PackageMetadata {
+
+    public static final String KEY_POST_TIMESTAMP = "post-timestamp";
+    public static final String KEY_PRE_DEVICE = "pre-device";
+    public static final String KEY_PRE_BUILD = "pre-build";
+    public static final String KEY_PRE_BUILD_INCREMENTAL = "pre-build-incremental";
+    public static final String KEY_OTA_TYPE = "ota-type";
+    public static final String KEY_POST_SECURITY_PATCH_LEVEL = "post-security-patch-level";
+
+    private final boolean mIsAB;
+    private final long mPayloadOffset;
+    private final long mPayloadSize;
+    private final String[] mPayloadProperties;
+    private final Map<String, String> mMetadata;
+
+    public PackageMetadata(boolean isAB, long payloadOffset, long payloadSize,
+            String[] payloadProperties, Map<String, String> metadata) {
+        mIsAB = isAB;
+        mPayloadOffset = payloadOffset;
+        mPayloadSize = payloadSize;
+        mPayloadProperties = payloadProperties != null ? payloadProperties.clone() : new String[0];
+        mMetadata = Collections.unmodifiableMap(metadata != null ?
+                new LinkedHashMap<>(metadata) : new LinkedHashMap<>());
+    }
+
+    public boolean isABUpdate() {
+        return mIsAB;
+    }
+
+    /**
+     * @return the offset of payload.bin inside the package, or -1 if not an A/B
+     * update or if the metadata was read before the package was fully downloaded
+     */
+    public long getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    /**
+     * @return whether everything needed to install the package is known
+     */
+    public boolean isComplete() {
+        return !mIsAB || mPayloadOffset >= 0;
+    }
+
+    /**
+     * @return the size of payload.bin, or -1 if not an A/B update
+     */
+    public long getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    public String[] getPayloadProperties() {
+        return mPayloadProperties.clone();
+    }
+
+    public Map<String, String> getMetadata() {
+        return mMetadata;
+    }
+
+    public String getMetadata(String key) {
+        return mMetadata.get(key);
+    }
+
+    /**
+     * @return the build timestamp declared by the package, or -1 if unknown
+     */
+    public long getTimestamp() {
+        String timestamp = mMetadata.get(KEY_POST_TIMESTAMP);
+        if (timestamp == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(timestamp.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String getPayloadPropertiesString() {
+        return String.join("\n", mPayloadProperties);
+    }
+
+    public String getMetadataString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : mMetadata.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse the content of META-INF/com/android/metadata, made of key=value lines
+     */
+    public static Map<String, String> parseMetadata(String content) {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        if (content == null) {
+            return metadata;
+        }
+        for (String line : content.split("\n")) {
+            int separator = line.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            metadata.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+        }
+        return metadata;
+    }
+
+    public static String[] parsePayloadProperties(String content) {
+        if (content == null || content.isEmpty()) {
+            return new String[0];
+        }
+        return content.split("\n");
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summary of the manifest of an A/B payload (payload.bin).
+ */
+public final class PayloadInfo {
+
+    private final long mVersion;
+    private final int mMinorVersion;
+    private final List<String> mPartitions;
+    private final long mTotalWriteSize;
+    private final boolean mIsIncremental;
+    private final long mMaxTimestamp;
+
+    public PayloadInfo(long version, int minorVersion, List<String> partitions,
+            long totalWriteSize, boolean isIncremental, long maxTimestamp) {
+        mVersion = version;
+        mMinorVersion = minorVersion;
+        mPartitions = Collections.unmodifiableList(partitions);
+        mTotalWriteSize = totalWriteSize;
+        mIsIncremental = isIncremental;
+        mMaxTimestamp = maxTimestamp;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int getMinorVersion() {
+        return mMinorVersion;
+    }
+
+    /**
+     * @return the names of the partitions updated by the payload
+     */
+    public List<String> getPartitions() {
+        return mPartitions;
+    }
+
+    /**
+     * @return the sum of the sizes of the target partitions, in bytes
+     */
+    public long getTotalWriteSize() {
+        return mTotalWriteSize;
+    }
+
+    public boolean isIncremental() {
+        return mIsIncremental;
+    }
+
+    public boolean isFull() {
+        return !mIsIncremental;
+    }
+
+    public long getMaxTimestamp() {
+        return mMaxTimestamp;
+    }
+}
@@ -16,114 +16,244 @@
 package org.lineageos.updater.model;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
-public class Update extends UpdateBase implements UpdateInfo {
+/**
+ * An update whose state can be changed from any thread. Each change publishes
+ * a new UpdateSnapshot, so readers that need several fields to be consistent
+ * should get a snapshot instead of calling the getters one by one.
+ */
+public class Update implements UpdateInfo {
     public static final String LOCAL_ID = "local";
 
-    private UpdateStatus mStatus = UpdateStatus.UNKNOWN;
-    private int mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
-    private File mFile;
-    private int mProgress;
-    private long mEta;
-    private long mSpeed;
-    private int mInstallProgress;
-    private boolean mAvailableOnline;
-    private boolean mIsFinalizing;
+    private final AtomicReference<UpdateSnapshot> mSnapshot;
 
     public Update() {
+        mSnapshot = new AtomicReference<>(UpdateSnapshot.EMPTY);
     }
 
     public Update(UpdateInfo update) {
-        super(update);
-        mStatus = update.getStatus();
-        mPersistentStatus = update.getPersistentStatus();
-        mFile = update.getFile();
-        mProgress = update.getProgress();
-        mEta = update.getEta();
-        mSpeed = update.getSpeed();
-        mInstallProgress = update.getInstallProgress();
-        mAvailableOnline = update.getAvailableOnline();
-        mIsFinalizing = update.getFinalizing();
+        mSnapshot = new AtomicReference<>(UpdateSnapshot.of(update));
+    }
+
+    /**
+     * @return the current state of the update, which won't change anymore
+     */
+    public UpdateSnapshot getSnapshot() {
+        return mSnapshot.get();
+    }
+
+    private void apply(UnaryOperator<UpdateSnapshot> change) {
+        mSnapshot.updateAndGet(change);
+    }
+
+    private void applyBase(Consumer<UpdateBase> change) {
+        apply(snapshot -> {
+            UpdateBase base = new UpdateBase(snapshot.getBase());
+            change.accept(base);
+            return snapshot.withBase(base);
+        });
+    }
+
+    @Override
+    public String getName() {
+        return getSnapshot().getName();
+    }
+
+    public void setName(String name) {
+        applyBase(base -> base.setName(name));
+    }
+
+    @Override
+    public String getDownloadId() {
+        return getSnapshot().getDownloadId();
+    }
+
+    public void setDownloadId(String downloadId) {
+        applyBase(base -> base.setDownloadId(downloadId));
+    }
+
+    @Override
+    public long getTimestamp() {
+        return getSnapshot().getTimestamp();
+    }
+
+    public void setTimestamp(long timestamp) {
+        applyBase(base -> base.setTimestamp(timestamp));
+    }
+
+    @Override
+    public String getType() {
+        return getSnapshot().getType();
+    }
+
+    public void setType(String type) {
+        applyBase(base -> base.setType(type));
+    }
+
+    @Override
+    public String getVersion() {
+        return getSnapshot().getVersion();
+    }
+
+    public void setVersion(String version) {
+        applyBase(base -> base.setVersion(version));
+    }
+
+    @Override
+    public String getDownloadUrl() {
+        return getSnapshot().getDownloadUrl();
+    }
+
+    public void setDownloadUrl(String downloadUrl) {
+        applyBase(base -> base.setDownloadUrl(downloadUrl));
+    }
+
+    @Override
+    public long getFileSize() {
+        return getSnapshot().getFileSize();
+    }
+
+    public void setFileSize(long fileSize) {
+        applyBase(base -> base.setFileSize(fileSize));
+    }
+
+    @Override
+    public String getChunkManifestUrl() {
+        return getSnapshot().getChunkManifestUrl();
+    }
+
+    public void setChunkManifestUrl(String chunkManifestUrl) {
+        applyBase(base -> base.setChunkManifestUrl(chunkManifestUrl));
     }
 
     @Override
     public UpdateStatus getStatus() {
-        return mStatus;
+        return getSnapshot().getStatus();
     }
 
     public void setStatus(UpdateStatus status) {
-        mStatus = status;
+        apply(snapshot -> snapshot.withStatus(status));
     }
 
     @Override
     public int getPersistentStatus() {
-        return mPersistentStatus;
+        return getSnapshot().getPersistentStatus();
     }
 
     public void setPersistentStatus(int status) {
-        mPersistentStatus = status;
+        apply(snapshot -> snapshot.withPersistentStatus(status));
     }
 
     @Override
     public File getFile() {
-        return mFile;
+        return getSnapshot().getFile();
     }
 
     public void setFile(File file) {
-        mFile = file;
+        apply(snapshot -> snapshot.withFile(file));
     }
 
     @Override
     public int getProgress() {
-        return mProgress;
+        return getSnapshot().getProgress();
     }
 
     public void setProgress(int progress) {
-        mProgress = progress;
+        apply(snapshot -> snapshot.withDownloadProgress(progress, snapshot.getEta(),
+                snapshot.getSpeed()));
     }
 
     @Override
     public long getEta() {
-        return mEta;
+        return getSnapshot().getEta();
     }
 
     public void setEta(long eta) {
-        mEta = eta;
+        apply(snapshot -> snapshot.withDownloadProgress(snapshot.getProgress(), eta,
+                snapshot.getSpeed()));
     }
 
     @Override
     public long getSpeed() {
-        return mSpeed;
+        return getSnapshot().getSpeed();
     }
 
     public void setSpeed(long speed) {
-        mSpeed = speed;
+        apply(snapshot -> snapshot.withDownloadProgress(snapshot.getProgress(),
+                snapshot.getEta(), speed));
+    }
+
+    /**
+     * Change the progress, eta and speed of the download together, so that
+     * readers never see them out of sync
+     */
+    public void setDownloadProgress(int progress, long eta, long speed) {
+        apply(snapshot -> snapshot.withDownloadProgress(progress, eta, speed));
     }
 
     @Override
     public int getInstallProgress() {
-        return mInstallProgress;
+        return getSnapshot().getInstallProgress();
     }
 
     public void setInstallProgress(int progress) {
-        mInstallProgress = progress;
+        apply(snapshot -> snapshot.withInstallProgress(progress));
+    }
+
+    @Override
+    public int getVerificationProgress() {
+        return getSnapshot().getVerificationProgress();
+    }
+
+    public void setVerificationProgress(int progress) {
+        apply(snapshot -> snapshot.withVerificationProgress(progress));
     }
 
     @Override
     public boolean getAvailableOnline() {
-        return mAvailableOnline;
+        return getSnapshot().getAvailableOnline();
     }
 
     public void setAvailableOnline(boolean availableOnline) {
-        mAvailableOnline = availableOnline;
+        apply(snapshot -> snapshot.withAvailableOnline(availableOnline));
     }
 
     @Override
     public boolean getFinalizing() {
-        return mIsFinalizing;
+        return getSnapshot().getFinalizing();
     }
 
     public void setFinalizing(boolean finalizing) {
-        mIsFinalizing = finalizing;
+        apply(snapshot -> snapshot.withFinalizing(finalizing));
+    }
+
+    @Override
+    public PackageMetadata getPackageMetadata() {
+        return getSnapshot().getPackageMetadata();
+    }
+
+    public void setPackageMetadata(PackageMetadata packageMetadata) {
+        apply(snapshot -> snapshot.withPackageMetadata(packageMetadata));
+    }
+
+    @Override
+    public PayloadInfo getPayloadInfo() {
+        return getSnapshot().getPayloadInfo();
+    }
+
+    public void setPayloadInfo(PayloadInfo payloadInfo) {
+        apply(snapshot -> snapshot.withPayloadInfo(payloadInfo));
+    }
+
+    @Override
+    public String getVerificationKey() {
+        return getSnapshot().getVerificationKey();
+    }
+
+    public void setVerificationKey(String verificationKey) {
+        apply(snapshot -> snapshot.withVerificationKey(verificationKey));
     }
 }
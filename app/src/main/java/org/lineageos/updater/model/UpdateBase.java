@@ -24,6 +24,7 @@ public class UpdateBase implements UpdateBaseInfo {
     private String mType;
     private String mVersion;
     private long mFileSize;
+    private String mChunkManifestUrl;
 
     public UpdateBase() {
     }
@@ -36,6 +37,7 @@ public class UpdateBase implements UpdateBaseInfo {
         mType = update.getType();
         mVersion = update.getVersion();
         mFileSize = update.getFileSize();
+        mChunkManifestUrl = update.getChunkManifestUrl();
     }
 
     @Override
@@ -100,4 +102,13 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setFileSize(long fileSize) {
         mFileSize = fileSize;
     }
+
+    @Override
+    public String getChunkManifestUrl() {
+        return mChunkManifestUrl;
+    }
+
+    public void setChunkManifestUrl(String chunkManifestUrl) {
+        mChunkManifestUrl = chunkManifestUrl;
+    }
 }
@@ -29,4 +29,10 @@ public interface UpdateBaseInfo {
     String getDownloadUrl();
 
     long getFileSize();
+
+    /**
+     * @return the location of the per-chunk hashes of the package, or null if
+     * the server doesn't publish them
+     */
+    String getChunkManifestUrl();
 }
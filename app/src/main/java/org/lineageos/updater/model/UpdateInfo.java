@@ -34,7 +34,19 @@ public interface UpdateInfo extends UpdateBaseInfo {
 
     int getInstallProgress();
 
+    int getVerificationProgress();
+
     boolean getAvailableOnline();
 
     boolean getFinalizing();
+
+    PackageMetadata getPackageMetadata();
+
+    PayloadInfo getPayloadInfo();
+
+    /**
+     * @return the identity of the file when it was last verified, or null if
+     * it was never verified
+     */
+    String getVerificationKey();
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+import java.io.File;
+
+/**
+ * The state of an update at a given time. Snapshots never change once
+ * created, the with* methods build a modified copy that shares the
+ * UpdateBase fields with the original.
+ */
+public final class UpdateSnapshot implements UpdateInfo {
+
+    static final UpdateSnapshot EMPTY = new UpdateSnapshot(new UpdateBase());
+
+    // Never modified, a new one is created when any of its fields changes
+    private final UpdateBase mBase;
+
+    private final UpdateStatus mStatus;
+    private final int mPersistentStatus;
+    private final File mFile;
+    private final int mProgress;
+    private final long mEta;
+    private final long mSpeed;
+    private final int mInstallProgress;
+    private final int mVerificationProgress;
+    private final boolean mAvailableOnline;
+    private final boolean mIsFinalizing;
+    private final PackageMetadata mPackageMetadata;
+    private final PayloadInfo mPayloadInfo;
+    private final String mVerificationKey;
+
+    private UpdateSnapshot(UpdateBase base) {
+        mBase = base;
+        mStatus = UpdateStatus.UNKNOWN;
+        mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
+        mFile = null;
+        mProgress = 0;
+        mEta = 0;
+        mSpeed = 0;
+        mInstallProgress = 0;
+        mVerificationProgress = 0;
+        mAvailableOnline = false;
+        mIsFinalizing = false;
+        mPackageMetadata = null;
+        mPayloadInfo = null;
+        mVerificationKey = null;
+    }
+
+    private UpdateSnapshot(Builder builder) {
+        mBase = builder.mBase;
+        mStatus = builder.mStatus;
+        mPersistentStatus = builder.mPersistentStatus;
+        mFile = builder.mFile;
+        mProgress = builder.mProgress;
+        mEta = builder.mEta;
+        mSpeed = builder.mSpeed;
+        mInstallProgress = builder.mInstallProgress;
+        mVerificationProgress = builder.mVerificationProgress;
+        mAvailableOnline = builder.mAvailableOnline;
+        mIsFinalizing = builder.mIsFinalizing;
+        mPackageMetadata = builder.mPackageMetadata;
+        mPayloadInfo = builder.mPayloadInfo;
+        mVerificationKey = builder.mVerificationKey;
+    }
+
+    public static UpdateSnapshot of(UpdateInfo update) {
+        if (update instanceof UpdateSnapshot) {
+            return (UpdateSnapshot) update;
+        } else if (update instanceof Update) {
+            return ((Update) update).getSnapshot();
+        }
+        return new Builder(new UpdateBase(update), update).build();
+    }
+
+    private Builder copy() {
+        return new Builder(mBase, this);
+    }
+
+    UpdateBase getBase() {
+        return mBase;
+    }
+
+    /**
+     * @param base the new static fields, must not be modified afterwards
+     */
+    UpdateSnapshot withBase(UpdateBase base) {
+        return new Builder(base, this).build();
+    }
+
+    public UpdateSnapshot withStatus(UpdateStatus status) {
+        Builder builder = copy();
+        builder.mStatus = status;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withPersistentStatus(int status) {
+        Builder builder = copy();
+        builder.mPersistentStatus = status;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withFile(File file) {
+        Builder builder = copy();
+        builder.mFile = file;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withDownloadProgress(int progress, long eta, long speed) {
+        Builder builder = copy();
+        builder.mProgress = progress;
+        builder.mEta = eta;
+        builder.mSpeed = speed;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withInstallProgress(int progress) {
+        Builder builder = copy();
+        builder.mInstallProgress = progress;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withVerificationProgress(int progress) {
+        Builder builder = copy();
+        builder.mVerificationProgress = progress;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withAvailableOnline(boolean availableOnline) {
+        Builder builder = copy();
+        builder.mAvailableOnline = availableOnline;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withFinalizing(boolean finalizing) {
+        Builder builder = copy();
+        builder.mIsFinalizing = finalizing;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withPackageMetadata(PackageMetadata packageMetadata) {
+        Builder builder = copy();
+        builder.mPackageMetadata = packageMetadata;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withPayloadInfo(PayloadInfo payloadInfo) {
+        Builder builder = copy();
+        builder.mPayloadInfo = payloadInfo;
+        return builder.build();
+    }
+
+    public UpdateSnapshot withVerificationKey(String verificationKey) {
+        Builder builder = copy();
+        builder.mVerificationKey = verificationKey;
+        return builder.build();
+    }
+
+    /**
+     * The fields of a snapshot being created, starting from those of another update
+     */
+    private static final class Builder {
+        private final UpdateBase mBase;
+        private UpdateStatus mStatus;
+        private int mPersistentStatus;
+        private File mFile;
+        private int mProgress;
+        private long mEta;
+        private long mSpeed;
+        private int mInstallProgress;
+        private int mVerificationProgress;
+        private boolean mAvailableOnline;
+        private boolean mIsFinalizing;
+        private PackageMetadata mPackageMetadata;
+        private PayloadInfo mPayloadInfo;
+        private String mVerificationKey;
+
+        private Builder(UpdateBase base, UpdateInfo update) {
+            mBase = base;
+            mStatus = update.getStatus();
+            mPersistentStatus = update.getPersistentStatus();
+            mFile = update.getFile();
+            mProgress = update.getProgress();
+            mEta = update.getEta();
+            mSpeed = update.getSpeed();
+            mInstallProgress = update.getInstallProgress();
+            mVerificationProgress = update.getVerificationProgress();
+            mAvailableOnline = update.getAvailableOnline();
+            mIsFinalizing = update.getFinalizing();
+            mPackageMetadata = update.getPackageMetadata();
+            mPayloadInfo = update.getPayloadInfo();
+            mVerificationKey = update.getVerificationKey();
+        }
+
+        private UpdateSnapshot build() {
+            return new UpdateSnapshot(this);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mBase.getName();
+    }
+
+    @Override
+    public String getDownloadId() {
+        return mBase.getDownloadId();
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mBase.getTimestamp();
+    }
+
+    @Override
+    public String getType() {
+        return mBase.getType();
+    }
+
+    @Override
+    public String getVersion() {
+        return mBase.getVersion();
+    }
+
+    @Override
+    public String getDownloadUrl() {
+        return mBase.getDownloadUrl();
+    }
+
+    @Override
+    public long getFileSize() {
+        return mBase.getFileSize();
+    }
+
+    @Override
+    public String getChunkManifestUrl() {
+        return mBase.getChunkManifestUrl();
+    }
+
+    @Override
+    public UpdateStatus getStatus() {
+        return mStatus;
+    }
+
+    @Override
+    public int getPersistentStatus() {
+        return mPersistentStatus;
+    }
+
+    @Override
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public int getProgress() {
+        return mProgress;
+    }
+
+    @Override
+    public long getEta() {
+        return mEta;
+    }
+
+    @Override
+    public long getSpeed() {
+        return mSpeed;
+    }
+
+    @Override
+    public int getInstallProgress() {
+        return mInstallProgress;
+    }
+
+    @Override
+    public int getVerificationProgress() {
+        return mVerificationProgress;
+    }
+
+    @Override
+    public boolean getAvailableOnline() {
+        return mAvailableOnline;
+    }
+
+    @Override
+    public boolean getFinalizing() {
+        return mIsFinalizing;
+    }
+
+    @Override
+    public PackageMetadata getPackageMetadata() {
+        return mPackageMetadata;
+    }
+
+    @Override
+    public PayloadInfo getPayloadInfo() {
+        return mPayloadInfo;
+    }
+
+    @Override
+    public String getVerificationKey() {
+        return mVerificationKey;
+    }
+}